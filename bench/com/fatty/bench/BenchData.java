@@ -0,0 +1,72 @@
+package com.fatty.bench;
+
+import com.fatty.ml.misser.KangMisser;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * The synthetic data sets of the benchmarks. A data set has d uniform numeric attributes and a numeric class which is
+ * their sum, so the attributes are predictable from each other and the imputers have something to find. The data is
+ * drawn from a fixed seed, so every run of a benchmark sees the same data.
+ */
+public class BenchData {
+    public static final long SEED = 20160911L;
+
+    /**
+     * Returns a complete data set of n rows and d attributes, followed by the class.
+     */
+    public static Instances complete(int n, int d) {
+        ArrayList<Attribute> attributes = new ArrayList<>(d + 1);
+        for (int j=0; j<d; ++j)
+            attributes.add(new Attribute("a" + j));
+        attributes.add(new Attribute("class"));
+        Instances data = new Instances("bench-" + n + "x" + d, attributes, n);
+        data.setClassIndex(d);
+        Random random = new Random(SEED);
+        for (int i=0; i<n; ++i) {
+            double[] values = new double[d + 1];
+            for (int j=0; j<d; ++j) {
+                values[j] = random.nextDouble();
+                values[d] += values[j];
+            }
+            data.add(new DenseInstance(1.0, values));
+        }
+        return data;
+    }
+
+    /**
+     * Returns a data set of n rows and d attributes, of which a ratio of the rows miss some attributes as
+     * {@link KangMisser} misses them.
+     */
+    public static Instances missed(int n, int d, double ratio) {
+        KangMisser misser = new KangMisser(0.0, 0.5);
+        misser.setSeed(SEED);
+        return misser.miss(complete(n, d), ratio, d);
+    }
+
+    /**
+     * Returns a random matrix of d rows and k columns.
+     */
+    public static double[][] matrix(int d, int k, Random random) {
+        double[][] m = new double[d][k];
+        for (int i=0; i<d; ++i) {
+            for (int j=0; j<k; ++j)
+                m[i][j] = random.nextDouble();
+        }
+        return m;
+    }
+
+    /**
+     * Returns a random vector of n values.
+     */
+    public static double[] vector(int n, Random random) {
+        double[] v = new double[n];
+        for (int i=0; i<n; ++i)
+            v[i] = random.nextDouble();
+        return v;
+    }
+}
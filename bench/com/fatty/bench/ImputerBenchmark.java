@@ -0,0 +1,65 @@
+package com.fatty.bench;
+
+import com.fatty.ml.imputer.Imputer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.core.Instances;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Imputer#impute(Instances, int)} end to end, i.e. fitting and imputing, on a data set of which 30% of the rows
+ * miss some attributes. Every imputation takes seconds, so it is timed as single shots on a fresh copy of the data.
+ *
+ * The brute-force imputers are quadratic, so the default sizes stop at 100k rows. Larger sizes are run explicitly,
+ * e.g. with -p rows=1000000 -p imputer=KANNOpt2Imputer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ImputerBenchmark {
+    protected static double MISSING_RATIO = 0.3;
+
+    @Param({"CMeansImputer", "CopyImputer", "GMMImputer", "HotDeckImputer", "KANNImputer", "KANNOpt1Imputer",
+            "KANNOpt2Imputer", "KNNImputer", "KNNOpt1Imputer", "KNNOpt2Imputer", "MEIImputer"})
+    public String imputer;
+
+    @Param({"10000", "100000"})
+    public int rows;
+
+    @Param({"8"})
+    public int d;
+
+    protected Instances missed;
+    protected Instances data;
+    protected Imputer instance;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        missed = BenchData.missed(rows, d, MISSING_RATIO);
+    }
+
+    @Setup(Level.Iteration)
+    public void setupIteration() throws Exception {
+        data = new Instances(missed);
+        instance = (Imputer) Class.forName("com.fatty.ml.imputer." + imputer).getDeclaredConstructor().newInstance();
+    }
+
+    @Benchmark
+    public Instances impute() throws Exception {
+        return instance.impute(data, d);
+    }
+}
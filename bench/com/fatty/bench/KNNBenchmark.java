@@ -0,0 +1,70 @@
+package com.fatty.bench;
+
+import com.fatty.ml.UniformLLR;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The k-NN search of {@link UniformLLR} for a single query, by brute force and by the approximate graph. The
+ * reconstruction uses the Average strategy, so the time is the neighbor search and a k-term average. The queries
+ * cycle through rows which miss the class only, so every search runs over all the attributes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KNNBenchmark {
+    protected static int NUM_QUERIES = 1024;
+
+    @Param({"BruteForce", "Approximate"})
+    public UniformLLR.NNStrategy strategy;
+
+    @Param({"10000", "100000", "1000000"})
+    public int rows;
+
+    @Param({"8"})
+    public int d;
+
+    @Param({"20"})
+    public int k;
+
+    protected UniformLLR llr;
+    protected Instance[] queries;
+    protected int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Instances data = BenchData.complete(rows, d);
+        llr = new UniformLLR(k, strategy, UniformLLR.LLRStrategy.Average);
+        llr.buildClassifier(data);
+        Instances queryData = BenchData.complete(NUM_QUERIES, d);
+        queries = new Instance[NUM_QUERIES];
+        for (int i=0; i<NUM_QUERIES; ++i) {
+            queries[i] = queryData.get(i);
+            queries[i].setMissing(d);
+        }
+    }
+
+    @Benchmark
+    public double[] search() throws Exception {
+        Instance query = queries[next];
+        next = (next + 1) % NUM_QUERIES;
+        return llr.distributionForInstance(query);
+    }
+}
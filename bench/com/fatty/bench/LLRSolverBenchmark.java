@@ -0,0 +1,110 @@
+package com.fatty.bench;
+
+import com.fatty.ml.UniformLLR;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The LLR solvers on random problems of d dimensions and k neighbours. Optimize1d, Optimize2d and Simplex solve the
+ * Gram form, as {@link UniformLLR} solves them by default. Optimize1dMatrix and Optimize2dMatrix are the SMO solvers
+ * on the explicit d x k neighbour matrix, and OptimizeSlow is the JOptimizer reference on it. The 1-d SMO problems
+ * carry the augmented constant row of the sum-to-one constraint, as UniformLLR builds them. The solvers reuse one
+ * workspace, apart from OptimizeSlow which allocates, and start from uniform weights on every call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LLRSolverBenchmark {
+    protected static double SIMPLEX_TOLERANCE = 1e-6;
+    protected static int SIMPLEX_MAX_ITERATIONS = 200;
+
+    /**
+     * The benchmarked solvers, i.e. an {@link UniformLLR.LLRStrategy} and the form of its problem.
+     */
+    public enum Solver {
+        Optimize1d, Optimize2d, Simplex, Optimize1dMatrix, Optimize2dMatrix, OptimizeSlow
+    }
+
+    @Param({"Optimize1d", "Optimize2d", "Simplex", "Optimize1dMatrix", "Optimize2dMatrix", "OptimizeSlow"})
+    public Solver solver;
+
+    @Param({"4", "16", "64"})
+    public int d;
+
+    @Param({"5", "20", "50"})
+    public int k;
+
+    protected double[][] A;
+    protected double[] b;
+    protected int rows;
+    protected double[][] G;
+    protected double[] Atb;
+    protected double btb;
+    protected UniformLLR.SolverWorkspace workspace;
+    protected double[] w;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(BenchData.SEED);
+        boolean augmented = solver == Solver.Optimize1d || solver == Solver.Optimize1dMatrix;
+        // The 1-d SMO problems end with a constant row of ones, whose products are the bias of the Gram form.
+        rows = augmented ? d + 1 : d;
+        A = Arrays.copyOf(BenchData.matrix(d, k, random), rows);
+        b = Arrays.copyOf(BenchData.vector(d, random), rows);
+        if (augmented) {
+            A[d] = new double[k];
+            Arrays.fill(A[d], 1.0);
+            b[d] = 1.0;
+        }
+        G = new double[k][k];
+        Atb = new double[k];
+        for (int i=0; i<k; ++i) {
+            for (int j=0; j<k; ++j) {
+                for (int t=0; t<rows; ++t)
+                    G[i][j] += A[t][i] * A[t][j];
+            }
+            for (int t=0; t<rows; ++t)
+                Atb[i] += A[t][i] * b[t];
+        }
+        btb = 0.0;
+        for (int t=0; t<rows; ++t)
+            btb += b[t] * b[t];
+        workspace = new UniformLLR.SolverWorkspace(d + 1, k);
+        w = new double[k];
+    }
+
+    @Benchmark
+    public double[] solve() {
+        switch (solver) {
+            case Optimize1d:
+                return UniformLLR.gramBased1dLLRSolver(G, Atb, btb, k, workspace, w);
+            case Optimize2d:
+                return UniformLLR.gramBased2dLLRSolver(G, Atb, btb, k, workspace, w);
+            case Simplex:
+                return UniformLLR.simplexLLRSolver(G, Atb, k, SIMPLEX_TOLERANCE, SIMPLEX_MAX_ITERATIONS, workspace, w);
+            case Optimize1dMatrix:
+                return UniformLLR.smoBased1dLLRSolver(A, b, rows, k, workspace, w);
+            case Optimize2dMatrix:
+                return UniformLLR.smoBased2dLLRSolver(A, b, rows, k, workspace, w);
+            default:
+                return UniformLLR.slowSolver(A, b);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.fatty.bench;
+
+import com.fatty.Helper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The top-k selection of {@link Helper#getLeastIndices(double[], int)} over random distances.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LeastIndicesBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int n;
+
+    @Param({"5", "50"})
+    public int k;
+
+    protected double[] input;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        input = BenchData.vector(n, new Random(BenchData.SEED));
+    }
+
+    @Benchmark
+    public int[] leastIndices() {
+        return Helper.getLeastIndices(input, k);
+    }
+}
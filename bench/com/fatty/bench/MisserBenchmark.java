@@ -0,0 +1,53 @@
+package com.fatty.bench;
+
+import com.fatty.ml.misser.KangMisser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import weka.core.Instances;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link KangMisser#miss(Instances, double, int)} on a complete data set, including its deep copy of the data.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MisserBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int rows;
+
+    @Param({"8"})
+    public int d;
+
+    @Param({"0.3"})
+    public double ratio;
+
+    protected Instances data;
+    protected KangMisser misser;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        data = BenchData.complete(rows, d);
+        misser = new KangMisser(0.0, 0.5);
+        misser.setSeed(BenchData.SEED);
+    }
+
+    @Benchmark
+    public Instances miss() {
+        return misser.miss(data, ratio, d);
+    }
+}
@@ -0,0 +1,144 @@
+package com.fatty;
+
+/**
+ * A fixed-size primitive max-heap which keeps the k least (value, index) pairs of a stream. The pairs are ordered by
+ * value first and by index next, so ties are resolved deterministically in favor of the smaller index. NaN values are
+ * ordered after all the other values. It never allocates after construction.
+ */
+public class BoundedMaxHeap {
+    protected final double[] values;
+    protected final int[] indices;
+    protected int size;
+
+    public BoundedMaxHeap(int capacity) {
+        Helper.checkNotNegative("capacity", capacity);
+        this.values = new double[capacity];
+        this.indices = new int[capacity];
+        this.size = 0;
+    }
+
+    public int capacity() {
+        return values.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isFull() {
+        return size == values.length;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Returns the greatest kept value if the heap is full, or positive infinity otherwise. Values greater than the
+     * threshold are guaranteed to be rejected by {@link #offer(int, double)}.
+     */
+    public double threshold() {
+        return isFull() && size > 0 ? values[0] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Offers a pair to the heap.
+     * @param index the index of the element.
+     * @param value the value of the element.
+     * @return true if the pair is kept.
+     */
+    public boolean offer(int index, double value) {
+        if (size < values.length) {
+            int i = size++;
+            values[i] = value;
+            indices[i] = index;
+            siftUp(i);
+            return true;
+        }
+        if (size == 0 || !less(value, index, values[0], indices[0])) {
+            return false;
+        }
+        values[0] = value;
+        indices[0] = index;
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * Returns the index of the pair at a position of the heap array, in no particular order.
+     */
+    public int indexAt(int position) {
+        return indices[position];
+    }
+
+    /**
+     * Returns the value of the pair at a position of the heap array, in no particular order.
+     */
+    public double valueAt(int position) {
+        return values[position];
+    }
+
+    /**
+     * Removes all the kept pairs and returns their indices in ascending order of (value, index).
+     */
+    public int[] drainSortedIndices() {
+        return drainSortedIndices(null);
+    }
+
+    /**
+     * Removes all the kept pairs and returns their indices in ascending order of (value, index).
+     * @param sortedValues if not null, receives the values in the same order.
+     */
+    public int[] drainSortedIndices(double[] sortedValues) {
+        int[] sorted = new int[size];
+        while (size > 0) {
+            sorted[size-1] = indices[0];
+            if (sortedValues != null)
+                sortedValues[size-1] = values[0];
+            --size;
+            values[0] = values[size];
+            indices[0] = indices[size];
+            siftDown(0);
+        }
+        return sorted;
+    }
+
+    protected static boolean less(double va, int ia, double vb, int ib) {
+        int c = Double.compare(va, vb);
+        return c < 0 || (c == 0 && ia < ib);
+    }
+
+    protected void siftUp(int i) {
+        double v = values[i];
+        int idx = indices[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!less(values[parent], indices[parent], v, idx))
+                break;
+            values[i] = values[parent];
+            indices[i] = indices[parent];
+            i = parent;
+        }
+        values[i] = v;
+        indices[i] = idx;
+    }
+
+    protected void siftDown(int i) {
+        double v = values[i];
+        int idx = indices[i];
+        int half = size >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < size && less(values[child], indices[child], values[right], indices[right]))
+                child = right;
+            if (!less(v, idx, values[child], indices[child]))
+                break;
+            values[i] = values[child];
+            indices[i] = indices[child];
+            i = child;
+        }
+        values[i] = v;
+        indices[i] = idx;
+    }
+}
@@ -3,7 +3,6 @@ package com.fatty;
 import weka.core.Instances;
 
 import java.io.File;
-import java.util.Arrays;
 
 /**
  * Created by fatty on 16/8/21.
@@ -94,57 +93,17 @@ public class Helper {
     }
 
     /**
-     *
-     * @param arr
-     * @param indices
-     * @param left
-     * @param right
-     * @return
+     * Selects the indices of the k least values with a bounded max-heap. The input is not modified and ties are
+     * resolved in favor of the smaller index.
+     * @param input the values to select from.
+     * @param k the number of indices to select.
+     * @return the indices of the min(k, input.length) least values in ascending order of values.
      */
-    public static int partition(double[] arr, int[] indices, int left, int right) {
-        double partitionVal = arr[left];
-        int partitionIndex = indices[left];
-        if (left > right) // This should never happen.
-            return -1;
-
-        while (left < right) {
-            while (left < right && arr[right] >= partitionVal) {
-                right--;
-            }
-            arr[left] = arr[right];
-            indices[left] = indices[right];
-            while (left < right && arr[left] < partitionVal) {
-                left++;
-            }
-            arr[right] = arr[left];
-            indices[right] = indices[left];
-        }
-        arr[left] = partitionVal;
-        indices[left] = partitionIndex;
-        return left;
-    }
-
     public static int[] getLeastIndices(double[] input, int k){
-        if(input.length == 0 || k<= 0)
-            return null;
-
-        int[] indices = new int[input.length];
+        checkNotNull("input", input);
+        BoundedMaxHeap heap = new BoundedMaxHeap(Math.max(0, Math.min(k, input.length)));
         for (int i=0; i<input.length; ++i)
-            indices[i] = i;
-
-        int start = 0;
-        int end = input.length-1;
-        int index = partition(input, indices, start, end);
-        while(index != k-1) {
-            if(index > k-1) {
-                end = index-1;
-                index = partition(input, indices, start, end);
-            } else {
-                start = index+1;
-                index = partition(input, indices, start, end);
-            }
-        }
-
-        return Arrays.copyOfRange(indices, 0, k);
+            heap.offer(i, input[i]);
+        return heap.drainSortedIndices();
     }
 }
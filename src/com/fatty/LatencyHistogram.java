@@ -0,0 +1,116 @@
+package com.fatty;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of non-negative long values, e.g. latencies in nanoseconds, with a bounded relative error.
+ * Values below 16 get a bucket each, and every power of two above gets 16 buckets, so a percentile is accurate within
+ * 1/16 of its value, whatever the range. The buckets are fixed at construction and recording never allocates or
+ * blocks, so it is cheap enough to be called on every request.
+ */
+public class LatencyHistogram {
+    protected static final int SUB_BUCKET_BITS = 4;
+    protected static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    protected static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    protected final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    protected final LongAdder count = new LongAdder();
+    protected final LongAdder sum = new LongAdder();
+    protected final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value, where negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        sum.add(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value))
+            m = max.get();
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = count.sum();
+        return n == 0 ? 0.0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Returns the value below or at which a percentage of the recorded values fall, as the upper bound of its bucket
+     * capped by the maximum, or 0 if nothing was recorded.
+     * @param percentile the percentage in [0, 100].
+     */
+    public long percentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Expected percentile in [0, 100], but got " + percentile);
+        }
+        long n = 0;
+        long[] snapshot = new long[NUM_BUCKETS];
+        for (int i=0; i<NUM_BUCKETS; ++i) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i=0; i<NUM_BUCKETS; ++i) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(upperBoundOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears the histogram. Values recorded concurrently may be kept or cleared.
+     */
+    public void reset() {
+        for (int i=0; i<NUM_BUCKETS; ++i)
+            counts.set(i, 0);
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * Summarizes the histogram in microseconds, assuming it records nanoseconds.
+     */
+    public String summaryMicros() {
+        return String.format("count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+                count(), mean() / 1e3, percentile(50) / 1e3, percentile(90) / 1e3, percentile(99) / 1e3,
+                percentile(99.9) / 1e3, max() / 1e3);
+    }
+
+    protected static int bucketOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    protected static long lowerBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    protected static long upperBoundOf(int bucket) {
+        return bucket + 1 < NUM_BUCKETS ? lowerBoundOf(bucket + 1) - 1 : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,86 @@
+package com.fatty.ml;
+
+import com.fatty.Helper;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.Evaluation;
+import weka.core.Instances;
+
+import java.util.Random;
+
+/**
+ * The cross-validation folds of a data set, split once and shared by every classifier evaluated on it. The data is
+ * randomized, stratified and split the same way {@link Evaluation#crossValidateModel} does, so a classifier gets the
+ * same error as crossValidateModel with the same random generator, but the folds are materialized only once
+ * however many classifiers are evaluated, and all of them are compared on the same folds.
+ *
+ * The folds are shallow: weka copies the instance wrappers into every fold and shares the value arrays, so a fold
+ * costs a few references per row. The classifiers must not modify their training data, which none of weka's do.
+ */
+public class CVFolds {
+    protected final Instances data;
+    protected final int numFolds;
+    protected final Instances[] train;
+    protected final Instances[] test;
+
+    /**
+     * @param data the data set, which is not modified.
+     * @param numFolds the number of folds.
+     * @param random the random generator of the split.
+     */
+    public CVFolds(Instances data, int numFolds, Random random) {
+        Helper.checkNotNull("data", data);
+        Helper.checkNotNull("random", random);
+        if (numFolds < 2 || numFolds > data.numInstances()) {
+            throw new IllegalArgumentException("Expected 2 to " + data.numInstances() + " folds, but got " + numFolds);
+        }
+        this.data = new Instances(data);
+        this.numFolds = numFolds;
+        this.train = new Instances[numFolds];
+        this.test = new Instances[numFolds];
+        this.data.randomize(random);
+        if (this.data.classAttribute().isNominal())
+            this.data.stratify(numFolds);
+        for (int fold=0; fold<numFolds; ++fold) {
+            train[fold] = this.data.trainCV(numFolds, fold, random);
+            test[fold] = this.data.testCV(numFolds, fold);
+        }
+    }
+
+    public int numFolds() {
+        return numFolds;
+    }
+
+    public Instances train(int fold) {
+        return train[fold];
+    }
+
+    public Instances test(int fold) {
+        return test[fold];
+    }
+
+    /**
+     * Trains a copy of a classifier on every training fold and evaluates it on the test fold.
+     * @param classifier the classifier, which is not trained itself.
+     * @return the evaluation over all the folds.
+     */
+    public Evaluation evaluate(Classifier classifier) throws Exception {
+        Helper.checkNotNull("classifier", classifier);
+        Evaluation eval = new Evaluation(data);
+        for (int fold=0; fold<numFolds; ++fold) {
+            eval.setPriors(train[fold]);
+            Classifier copy = AbstractClassifier.makeCopy(classifier);
+            copy.buildClassifier(train[fold]);
+            eval.evaluateModel(copy, test[fold]);
+        }
+        return eval;
+    }
+
+    /**
+     * Returns the error rate of a classifier for a nominal class, or the root mean squared error otherwise.
+     */
+    public double performance(Classifier classifier) throws Exception {
+        Evaluation eval = evaluate(classifier);
+        return data.classAttribute().isNominal() ? eval.errorRate() : eval.rootMeanSquaredError();
+    }
+}
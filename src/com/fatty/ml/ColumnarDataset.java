@@ -0,0 +1,455 @@
+package com.fatty.ml;
+
+import com.fatty.Helper;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.converters.ConverterUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * A data set in a binary columnar file, read by memory-mapping the file. Opening a file maps the columns without
+ * parsing anything, so a data set of gigabytes is ready in milliseconds, and the values are paged in as they are read.
+ *
+ * The file starts with the magic number, the version and the serialized header of the data set, i.e. the attribute
+ * metadata, followed by the numbers of rows and columns. Every column then follows in turn as its little-endian
+ * double values and its missing bitmap, with bit r%64 of word r/64 set for a missing row r. A missing value is also
+ * stored as NaN. Nominal values are stored as their indices, like weka does. Only numeric, date and nominal
+ * attributes are supported, and a column holds at most 268 million rows, i.e. 2GB of values.
+ */
+public class ColumnarDataset {
+    public static final String EXTENSION = ".hmc";
+    protected static int MAGIC = 0x484D4344; // "HMCD"
+    protected static int VERSION = 1;
+    protected static int CHUNK_ROWS = 1 << 16;
+
+    protected final Instances header;
+    protected final int numRows;
+    protected final int numColumns;
+    protected final DoubleBuffer[] columns;
+    protected final LongBuffer[] missing;
+
+    protected ColumnarDataset(Instances header, int numRows, DoubleBuffer[] columns, LongBuffer[] missing) {
+        this.header = header;
+        this.numRows = numRows;
+        this.numColumns = header.numAttributes();
+        this.columns = columns;
+        this.missing = missing;
+    }
+
+    /**
+     * Returns whether a file name has the extension of the columnar format.
+     */
+    public static boolean isColumnar(String file) {
+        return file.toLowerCase().endsWith(EXTENSION);
+    }
+
+    /**
+     * Reads a data set, mapping a columnar file or parsing any other format weka could load.
+     */
+    public static Instances load(String file) throws Exception {
+        Helper.checkNotNullNorEmpty("file", file);
+        if (isColumnar(file))
+            return open(new File(file)).toInstances();
+        return ConverterUtils.DataSource.read(file);
+    }
+
+    /**
+     * Writes a data set in the columnar format or, for any other extension, in the format weka chooses.
+     */
+    public static void save(String file, Instances data) throws Exception {
+        Helper.checkNotNullNorEmpty("file", file);
+        if (isColumnar(file))
+            write(new File(file), data);
+        else
+            ConverterUtils.DataSink.write(file, data);
+    }
+
+    /**
+     * Maps a columnar file.
+     * @throws IOException if the file could not be read or is not a columnar file of this version.
+     */
+    public static ColumnarDataset open(File file) throws IOException {
+        Helper.checkNotNull("file", file);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer preamble = map(channel, 0, 12);
+            if (preamble.getInt() != MAGIC) {
+                throw new IOException("The file " + file + " is not a columnar data set.");
+            }
+            int version = preamble.getInt();
+            if (version != VERSION) {
+                throw new IOException("Expected columnar data set version " + VERSION + ", but got " + version);
+            }
+            int headerLength = preamble.getInt();
+            byte[] headerBytes = new byte[headerLength];
+            map(channel, 12, headerLength).get(headerBytes);
+            Instances header;
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(headerBytes))) {
+                header = (Instances) in.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Error occurs while reading the header. Details: " + e.getMessage(), e);
+            }
+            long position = 12 + headerLength;
+            ByteBuffer sizes = map(channel, position, 8);
+            int numRows = sizes.getInt(), numColumns = sizes.getInt();
+            Helper.checkIntEqual(header.numAttributes(), numColumns);
+            position = dataStart(headerLength);
+            DoubleBuffer[] columns = new DoubleBuffer[numColumns];
+            LongBuffer[] missing = new LongBuffer[numColumns];
+            for (int c=0; c<numColumns; ++c) {
+                columns[c] = map(channel, position, 8L * numRows).asDoubleBuffer();
+                position += 8L * numRows;
+                missing[c] = map(channel, position, 8L * words(numRows)).asLongBuffer();
+                position += 8L * words(numRows);
+            }
+            if (position != channel.size()) {
+                throw new IOException("The columnar data set " + file + " is corrupted.");
+            }
+            return new ColumnarDataset(header, numRows, columns, missing);
+        }
+    }
+
+    public Instances header() {
+        return header;
+    }
+
+    public int numRows() {
+        return numRows;
+    }
+
+    public int numColumns() {
+        return numColumns;
+    }
+
+    /**
+     * Returns the mapped values of a column, where a missing value is NaN.
+     */
+    public DoubleBuffer column(int column) {
+        return columns[column].duplicate();
+    }
+
+    public double value(int row, int column) {
+        return columns[column].get(row);
+    }
+
+    public boolean isMissing(int row, int column) {
+        return (missing[column].get(row >>> 6) & (1L << row)) != 0;
+    }
+
+    /**
+     * Returns a row as an instance of the header.
+     */
+    public Instance instance(int row) {
+        double[] values = new double[numColumns];
+        for (int c=0; c<numColumns; ++c)
+            values[c] = isMissing(row, c) ? Utils.missingValue() : columns[c].get(row);
+        Instance instance = new DenseInstance(1.0, values);
+        instance.setDataset(header);
+        return instance;
+    }
+
+    /**
+     * Copies all the rows into a weka data set, one column at a time.
+     */
+    public Instances toInstances() {
+        double[][] rows = new double[numRows][numColumns];
+        double[] buffer = new double[Math.min(numRows, CHUNK_ROWS)];
+        for (int c=0; c<numColumns; ++c) {
+            DoubleBuffer column = column(c);
+            for (int from=0; from<numRows; from+=buffer.length) {
+                int count = Math.min(buffer.length, numRows - from);
+                column.get(buffer, 0, count);
+                for (int i=0; i<count; ++i)
+                    rows[from + i][c] = buffer[i];
+            }
+        }
+        // The missing values are stored as NaN, which is the missing value of weka.
+        Instances data = new Instances(header, numRows);
+        for (int row=0; row<numRows; ++row)
+            data.add(new DenseInstance(1.0, rows[row]));
+        return data;
+    }
+
+    /**
+     * Writes a data set in the columnar format.
+     */
+    public static void write(File file, Instances data) throws IOException {
+        Helper.checkNotNull("data", data);
+        try (Writer writer = new Writer(file, data, data.numInstances())) {
+            for (Instance instance: data)
+                writer.add(instance);
+        }
+    }
+
+    /**
+     * Converts an ARFF or CSV file, or any other format weka could load incrementally, into the columnar format
+     * without loading it. The source is read twice: once to count the rows, or for a CSV file to infer the column
+     * types, and once to write them. A CSV column is numeric if all its values are numbers, and nominal otherwise.
+     * The empty value and "?" mark a missing value.
+     * @param src the source file.
+     * @param dest the columnar file to write.
+     */
+    public static void convert(String src, String dest) throws Exception {
+        Helper.checkFileExists(src);
+        Helper.checkNotNullNorEmpty("dest", dest);
+        if (src.toLowerCase().endsWith(".csv")) {
+            convertCSV(src, dest);
+            return;
+        }
+        ConverterUtils.DataSource source = new ConverterUtils.DataSource(src);
+        Instances structure = source.getStructure();
+        int numRows = 0;
+        while (source.hasMoreElements(structure)) {
+            source.nextElement(structure);
+            ++numRows;
+        }
+        source = new ConverterUtils.DataSource(src);
+        structure = source.getStructure();
+        try (Writer writer = new Writer(new File(dest), structure, numRows)) {
+            while (source.hasMoreElements(structure))
+                writer.add(source.nextElement(structure));
+        }
+    }
+
+    protected static void convertCSV(String src, String dest) throws IOException {
+        // The first pass infers the column types and counts the rows.
+        List<String> names;
+        boolean[] numeric;
+        List<LinkedHashSet<String>> labels = new ArrayList<>();
+        int numRows = 0;
+        try (Reader reader = new FileReader(src);
+             CSVParser parser = CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(reader)) {
+            names = new ArrayList<>(parser.getHeaderMap().keySet());
+            numeric = new boolean[names.size()];
+            for (int c=0; c<names.size(); ++c) {
+                numeric[c] = true;
+                labels.add(new LinkedHashSet<>());
+            }
+            for (CSVRecord record: parser) {
+                checkRecord(record, names.size());
+                for (int c=0; c<names.size(); ++c) {
+                    String token = record.get(c).trim();
+                    if (isMissingToken(token))
+                        continue;
+                    labels.get(c).add(token);
+                    if (numeric[c] && !isNumber(token))
+                        numeric[c] = false;
+                }
+                ++numRows;
+            }
+        }
+        ArrayList<Attribute> attributes = new ArrayList<>(names.size());
+        for (int c=0; c<names.size(); ++c) {
+            attributes.add(numeric[c] ? new Attribute(names.get(c))
+                    : new Attribute(names.get(c), new ArrayList<>(labels.get(c))));
+        }
+        Instances header = new Instances(new File(src).getName(), attributes, 0);
+
+        // The second pass writes the rows.
+        double[] values = new double[names.size()];
+        try (Reader reader = new FileReader(src);
+             CSVParser parser = CSVFormat.DEFAULT.withFirstRecordAsHeader().parse(reader);
+             Writer writer = new Writer(new File(dest), header, numRows)) {
+            for (CSVRecord record: parser) {
+                checkRecord(record, names.size());
+                for (int c=0; c<names.size(); ++c) {
+                    String token = record.get(c).trim();
+                    if (isMissingToken(token))
+                        values[c] = Utils.missingValue();
+                    else
+                        values[c] = numeric[c] ? Double.parseDouble(token) : header.attribute(c).indexOfValue(token);
+                }
+                writer.add(values);
+            }
+        }
+    }
+
+    protected static void checkRecord(CSVRecord record, int numColumns) throws IOException {
+        if (record.size() != numColumns) {
+            throw new IOException("Expected " + numColumns + " values at line " + record.getRecordNumber()
+                    + ", but got " + record.size());
+        }
+    }
+
+    protected static boolean isMissingToken(String token) {
+        return token.isEmpty() || token.equals("?");
+    }
+
+    protected static boolean isNumber(String token) {
+        try {
+            Double.parseDouble(token);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the rows of a columnar file, which must be as many as declared. The rows are buffered in chunks and
+     * every chunk is written to the regions of the columns, so that a file is written in one pass over the rows.
+     */
+    public static class Writer implements Closeable {
+        protected final FileChannel channel;
+        protected final int numRows;
+        protected final int numColumns;
+        protected final long dataStart;
+        protected final double[][] chunk;
+        protected final ByteBuffer buffer;
+        protected int chunkStart;
+        protected int chunkRows;
+
+        /**
+         * @param file the file to write.
+         * @param header the data set whose header is written.
+         * @param numRows the number of rows to write.
+         */
+        public Writer(File file, Instances header, int numRows) throws IOException {
+            Helper.checkNotNull("file", file);
+            Helper.checkNotNull("header", header);
+            Helper.checkNotNegative("numRows", numRows);
+            if (numRows > Integer.MAX_VALUE / 8) {
+                throw new IOException("Expected at most " + Integer.MAX_VALUE / 8 + " rows, but got " + numRows);
+            }
+            for (int c=0; c<header.numAttributes(); ++c) {
+                Attribute attribute = header.attribute(c);
+                if (!attribute.isNumeric() && !attribute.isNominal()) {
+                    throw new IOException("The attribute " + attribute.name() + " is neither numeric nor nominal.");
+                }
+            }
+            ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(headerBytes)) {
+                out.writeObject(new Instances(header, 0));
+            }
+            this.numRows = numRows;
+            this.numColumns = header.numAttributes();
+            this.dataStart = dataStart(headerBytes.size());
+            this.chunk = new double[numColumns][Math.max(1, Math.min(numRows, CHUNK_ROWS))];
+            this.buffer = ByteBuffer.allocateDirect(8 * chunk[0].length).order(ByteOrder.LITTLE_ENDIAN);
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer preamble = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            preamble.putInt(MAGIC).putInt(VERSION).putInt(headerBytes.size());
+            preamble.flip();
+            writeFully(preamble, 0);
+            writeFully(ByteBuffer.wrap(headerBytes.toByteArray()), 12);
+            // The sizes are padded up to the columns, so that a file without rows still reaches its data start.
+            ByteBuffer sizes = ByteBuffer.allocate((int) (dataStart - 12 - headerBytes.size()))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            sizes.putInt(numRows).putInt(numColumns);
+            sizes.rewind();
+            writeFully(sizes, 12 + headerBytes.size());
+        }
+
+        public void add(Instance instance) throws IOException {
+            Helper.checkIntEqual(numColumns, instance.numAttributes());
+            checkCapacity();
+            for (int c=0; c<numColumns; ++c)
+                chunk[c][chunkRows] = instance.isMissing(c) ? Utils.missingValue() : instance.value(c);
+            if (++chunkRows == chunk[0].length)
+                flush();
+        }
+
+        /**
+         * Adds a row of values, where NaN marks a missing value.
+         */
+        public void add(double[] values) throws IOException {
+            Helper.checkIntEqual(numColumns, values.length);
+            checkCapacity();
+            for (int c=0; c<numColumns; ++c)
+                chunk[c][chunkRows] = values[c];
+            if (++chunkRows == chunk[0].length)
+                flush();
+        }
+
+        protected void checkCapacity() throws IOException {
+            if (chunkStart + chunkRows >= numRows) {
+                throw new IOException("Expected " + numRows + " rows, but got more.");
+            }
+        }
+
+        protected void flush() throws IOException {
+            long columnBytes = 8L * numRows + 8L * words(numRows);
+            for (int c=0; c<numColumns; ++c) {
+                long position = dataStart + c * columnBytes;
+                buffer.clear();
+                for (int i=0; i<chunkRows; ++i)
+                    buffer.putDouble(chunk[c][i]);
+                buffer.flip();
+                writeFully(buffer, position + 8L * chunkStart);
+                // The chunks start at multiples of 64 rows, so they own whole bitmap words.
+                buffer.clear();
+                for (int word=0; word<words(chunkRows); ++word) {
+                    long bits = 0;
+                    for (int i=word*64; i<Math.min(chunkRows, word*64+64); ++i) {
+                        if (Double.isNaN(chunk[c][i]))
+                            bits |= 1L << i;
+                    }
+                    buffer.putLong(bits);
+                }
+                buffer.flip();
+                writeFully(buffer, position + 8L * numRows + 8L * (chunkStart >>> 6));
+            }
+            chunkStart += chunkRows;
+            chunkRows = 0;
+        }
+
+        protected void writeFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining())
+                position += channel.write(buffer, position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (chunkRows > 0)
+                    flush();
+                if (chunkStart != numRows) {
+                    throw new IOException("Expected " + numRows + " rows, but got " + chunkStart);
+                }
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Returns where the columns start, i.e. after the preamble, the header and the sizes, aligned to 8 bytes.
+     */
+    protected static long dataStart(int headerLength) {
+        return (12L + headerLength + 8 + 7) & ~7L;
+    }
+
+    protected static int words(int numRows) {
+        return (numRows + 63) >>> 6;
+    }
+
+    protected static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        if (position + size > channel.size()) {
+            throw new IOException("Unexpected end of the columnar data set.");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
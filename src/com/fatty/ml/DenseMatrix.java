@@ -0,0 +1,247 @@
+package com.fatty.ml;
+
+import com.fatty.Helper;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * A dense row-major matrix on a flat contiguous array, together with the static kernels that the matrix helpers and
+ * the LLR solvers are built on. The kernels take explicit sizes and offsets and check nothing, so that they could run
+ * in inner loops; the instance methods check the shapes once per call.
+ *
+ * The matrix products are cache-blocked and accumulate every output entry in the natural order of the inner index,
+ * so they are identical to the textbook triple loop. Products of large shapes are split by row blocks on the
+ * fork-join common pool, or on the pool of the calling worker. The dot product runs four independent accumulators,
+ * which the JIT compiler keeps in separate registers, so it differs from a sequential sum by rounding.
+ */
+public class DenseMatrix {
+    protected static int BLOCK = 64;
+    // Products with fewer multiply-adds than this run on the calling thread.
+    protected static long PARALLEL_THRESHOLD = 1L << 21;
+
+    protected final int rows;
+    protected final int columns;
+    protected final double[] data;
+
+    public DenseMatrix(int rows, int columns) {
+        this(rows, columns, new double[Math.multiplyExact(rows, columns)]);
+    }
+
+    /**
+     * Wraps a row-major array, which is not copied.
+     */
+    public DenseMatrix(int rows, int columns, double[] data) {
+        Helper.checkNotNegative("rows", rows);
+        Helper.checkNotNegative("columns", columns);
+        Helper.checkNotNull("data", data);
+        Helper.checkIntEqual(rows * columns, data.length);
+        this.rows = rows;
+        this.columns = columns;
+        this.data = data;
+    }
+
+    /**
+     * Copies a jagged matrix.
+     */
+    public static DenseMatrix of(double[][] m) {
+        Helper.checkNotNull("m", m);
+        Helper.checkPositive("rows", m.length);
+        int rows = m.length, columns = m[0].length;
+        double[] data = new double[rows * columns];
+        for (int i=0; i<rows; ++i) {
+            Helper.checkIntEqual(columns, m[i].length);
+            System.arraycopy(m[i], 0, data, i * columns, columns);
+        }
+        return new DenseMatrix(rows, columns, data);
+    }
+
+    public double[][] toArray() {
+        double[][] m = new double[rows][];
+        for (int i=0; i<rows; ++i)
+            m[i] = Arrays.copyOfRange(data, i * columns, (i + 1) * columns);
+        return m;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int columns() {
+        return columns;
+    }
+
+    public double[] data() {
+        return data;
+    }
+
+    public double get(int i, int j) {
+        return data[i * columns + j];
+    }
+
+    public void set(int i, int j, double value) {
+        data[i * columns + j] = value;
+    }
+
+    public DenseMatrix transpose() {
+        DenseMatrix t = new DenseMatrix(columns, rows);
+        transpose(rows, columns, data, t.data);
+        return t;
+    }
+
+    /**
+     * Returns this*b.
+     */
+    public DenseMatrix multiply(DenseMatrix b) {
+        Helper.checkIntEqual(columns, b.rows);
+        DenseMatrix c = new DenseMatrix(rows, b.columns);
+        gemm(rows, columns, b.columns, data, b.data, c.data);
+        return c;
+    }
+
+    /**
+     * Returns this'*b without forming the transpose.
+     */
+    public DenseMatrix transposeMultiply(DenseMatrix b) {
+        Helper.checkIntEqual(rows, b.rows);
+        DenseMatrix c = new DenseMatrix(columns, b.columns);
+        gemmTransA(rows, columns, b.columns, data, b.data, c.data);
+        return c;
+    }
+
+    /**
+     * Returns this*x.
+     */
+    public double[] multiply(double[] x) {
+        Helper.checkIntEqual(columns, x.length);
+        double[] y = new double[rows];
+        gemv(rows, columns, data, x, y);
+        return y;
+    }
+
+    /**
+     * Returns this'*x without forming the transpose.
+     */
+    public double[] transposeMultiply(double[] x) {
+        Helper.checkIntEqual(rows, x.length);
+        double[] y = new double[columns];
+        gemvTrans(rows, columns, data, x, y);
+        return y;
+    }
+
+    /**
+     * Transposes the m x n matrix a into the n x m matrix t, block by block.
+     */
+    public static void transpose(int m, int n, double[] a, double[] t) {
+        for (int ii=0; ii<m; ii+=BLOCK) {
+            int iEnd = Math.min(m, ii + BLOCK);
+            for (int jj=0; jj<n; jj+=BLOCK) {
+                int jEnd = Math.min(n, jj + BLOCK);
+                for (int i=ii; i<iEnd; ++i)
+                    for (int j=jj; j<jEnd; ++j)
+                        t[j * m + i] = a[i * n + j];
+            }
+        }
+    }
+
+    /**
+     * Computes c=a*b, where a is m x n, b is n x p and c is m x p.
+     */
+    public static void gemm(int m, int n, int p, double[] a, double[] b, double[] c) {
+        forRowBlocks(m, (long) m * n * p, (from, to) -> {
+            Arrays.fill(c, from * p, to * p, 0.0);
+            for (int jj=0; jj<p; jj+=BLOCK) {
+                int jEnd = Math.min(p, jj + BLOCK);
+                for (int kk=0; kk<n; kk+=BLOCK) {
+                    int kEnd = Math.min(n, kk + BLOCK);
+                    for (int i=from; i<to; ++i) {
+                        int ci = i * p, ai = i * n;
+                        for (int k=kk; k<kEnd; ++k) {
+                            double aik = a[ai + k];
+                            int bk = k * p;
+                            for (int j=jj; j<jEnd; ++j)
+                                c[ci + j] += aik * b[bk + j];
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Computes c=a'*b, where a is n x m, b is n x p and c is m x p.
+     */
+    public static void gemmTransA(int n, int m, int p, double[] a, double[] b, double[] c) {
+        forRowBlocks(m, (long) m * n * p, (from, to) -> {
+            Arrays.fill(c, from * p, to * p, 0.0);
+            for (int kk=0; kk<n; kk+=BLOCK) {
+                int kEnd = Math.min(n, kk + BLOCK);
+                for (int i=from; i<to; ++i) {
+                    int ci = i * p;
+                    for (int k=kk; k<kEnd; ++k) {
+                        double aki = a[k * m + i];
+                        int bk = k * p;
+                        for (int j=0; j<p; ++j)
+                            c[ci + j] += aki * b[bk + j];
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Computes y=a*x, where a is m x n.
+     */
+    public static void gemv(int m, int n, double[] a, double[] x, double[] y) {
+        for (int i=0; i<m; ++i)
+            y[i] = dot(a, i * n, x, 0, n);
+    }
+
+    /**
+     * Computes y=a'*x, where a is m x n, by scaled row additions.
+     */
+    public static void gemvTrans(int m, int n, double[] a, double[] x, double[] y) {
+        Arrays.fill(y, 0, n, 0.0);
+        for (int i=0; i<m; ++i)
+            axpy(n, x[i], a, i * n, y, 0);
+    }
+
+    /**
+     * Computes the dot product of a[aOffset..aOffset+n) and b[bOffset..bOffset+n).
+     */
+    public static double dot(double[] a, int aOffset, double[] b, int bOffset, int n) {
+        double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+        int i = 0;
+        for (; i+3<n; i+=4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i<n; ++i)
+            s0 += a[aOffset + i] * b[bOffset + i];
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Computes y[yOffset..yOffset+n) += alpha*x[xOffset..xOffset+n).
+     */
+    public static void axpy(int n, double alpha, double[] x, int xOffset, double[] y, int yOffset) {
+        for (int i=0; i<n; ++i)
+            y[yOffset + i] += alpha * x[xOffset + i];
+    }
+
+    protected interface RowRange {
+        void apply(int from, int to);
+    }
+
+    protected static void forRowBlocks(int m, long work, RowRange range) {
+        int numBlocks = (m + BLOCK - 1) / BLOCK;
+        if (work < PARALLEL_THRESHOLD || numBlocks < 2) {
+            range.apply(0, m);
+        } else {
+            IntStream.range(0, numBlocks).parallel().forEach(b ->
+                    range.apply(b * BLOCK, Math.min(m, (b + 1) * BLOCK)));
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.fatty.ml;
+
+import com.fatty.Helper;
+import com.fatty.ml.imputer.Imputer;
+import com.fatty.ml.misser.KangMisser;
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the experiment grid of a data set, i.e. every repeat x missing ratio x imputer x classifier, on a bounded
+ * worker pool. The grid is expanded into one task per repeat, missing ratio and imputer, which misses the data,
+ * imputes it and cross-validates every classifier on the result.
+ *
+ * Every task draws its randomness from seeds derived from the grid seed and its coordinates, so the tasks of the
+ * same repeat and missing ratio miss the same rows, and the table does not depend on the number of threads or on
+ * the order the tasks finish in. The results are summed in the grid order once all the tasks are done.
+ *
+ * The imputed data of a task is split into cross-validation folds once, see {@link CVFolds}, and all the
+ * classifiers are evaluated on the same folds. The folds are drawn from the repeat and the missing ratio only, so
+ * the imputers of a cell are compared on the same rows as well, which makes the comparison paired.
+ */
+public class ExperimentGrid {
+    protected static long DEFAULT_SEED = 20160821L;
+    protected static long PROGRESS_INTERVAL_MILLIS = 10000;
+    protected static int NUM_FOLDS = 10;
+    // The coordinate that tells the seed of the folds from the seed of the misser.
+    protected static int FOLD_COORDINATE = -1;
+
+    protected final String name;
+    protected final Instances original;
+    protected final int classIndex;
+    protected final Class<?>[] classifiers;
+    protected final Class<?>[] imputers;
+    protected final double[] missingRatios;
+    protected final int missRepeat;
+    protected int numThreads = Runtime.getRuntime().availableProcessors();
+    protected long seed = DEFAULT_SEED;
+    protected double missMin = 0.0;
+    protected double missMax = 0.5;
+
+    /**
+     * @param name the name of the data set shown in the progress.
+     * @param original the complete data set.
+     * @param classIndex the class index, where -1 means the last attribute.
+     * @param classifiers the classifier classes.
+     * @param imputers the imputer classes, where null stands for the complete data set.
+     * @param missingRatios the ratios of the instances to miss.
+     * @param missRepeat the number of repeats of every cell.
+     */
+    public ExperimentGrid(String name, Instances original, int classIndex, Class<?>[] classifiers,
+                          Class<?>[] imputers, double[] missingRatios, int missRepeat) {
+        Helper.checkNotNull("original", original);
+        Helper.checkNotNull("classifiers", classifiers);
+        Helper.checkNotNull("imputers", imputers);
+        Helper.checkNotNull("missingRatios", missingRatios);
+        Helper.checkPositive("missRepeat", missRepeat);
+        this.name = name;
+        this.original = original;
+        this.classIndex = classIndex;
+        this.classifiers = classifiers;
+        this.imputers = imputers;
+        this.missingRatios = missingRatios;
+        this.missRepeat = missRepeat;
+    }
+
+    /**
+     * Sets the number of worker threads. It defaults to the number of available processors.
+     */
+    public void setNumThreads(int numThreads) {
+        Helper.checkPositive("numThreads", numThreads);
+        this.numThreads = numThreads;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Sets the range of the ratio of the attributes to miss in a missed instance, see {@link KangMisser}.
+     */
+    public void setMissRange(double missMin, double missMax) {
+        this.missMin = missMin;
+        this.missMax = missMax;
+    }
+
+    /**
+     * Runs the whole grid.
+     * @return the sums over the repeats of the performance, indexed by classifier, imputer and missing ratio.
+     * @throws Exception the error of the first task that failed, after the other tasks are cancelled.
+     */
+    public double[][][] run() throws Exception {
+        int numTasks = missRepeat * missingRatios.length * imputers.length;
+        // The results of every repeat are kept apart, so that they are summed in the same order however they finish.
+        double[][][][] results = new double[missRepeat][classifiers.length][imputers.length][missingRatios.length];
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(numThreads, numTasks));
+        try {
+            CompletionService<double[]> completion = new ExecutorCompletionService<>(pool);
+            List<Future<double[]>> futures = new ArrayList<>(numTasks);
+            for (int rpt=0; rpt<missRepeat; ++rpt) {
+                for (int k=0; k<missingRatios.length; ++k) {
+                    for (int j=0; j<imputers.length; ++j) {
+                        final int r = rpt, kk = k, jj = j;
+                        futures.add(completion.submit(() -> {
+                            double[] performance = runTask(r, kk, jj);
+                            for (int i=0; i<classifiers.length; ++i)
+                                results[r][i][jj][kk] = performance[i];
+                            return performance;
+                        }));
+                    }
+                }
+            }
+
+            long start = System.currentTimeMillis(), lastReport = start;
+            for (int done=1; done<=numTasks; ++done) {
+                try {
+                    completion.take().get();
+                } catch (ExecutionException e) {
+                    for (Future<double[]> future: futures)
+                        future.cancel(true);
+                    if (e.getCause() instanceof Exception)
+                        throw (Exception) e.getCause();
+                    throw e;
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastReport >= PROGRESS_INTERVAL_MILLIS || done == numTasks) {
+                    lastReport = now;
+                    long elapsed = now - start;
+                    long eta = elapsed * (numTasks - done) / done;
+                    System.out.printf("%s: %d/%d tasks done, elapsed %s, ETA %s%n", name, done, numTasks,
+                            formatMillis(elapsed), formatMillis(eta));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        double[][][] table = new double[classifiers.length][imputers.length][missingRatios.length];
+        for (int rpt=0; rpt<missRepeat; ++rpt) {
+            for (int i=0; i<classifiers.length; ++i) {
+                for (int j=0; j<imputers.length; ++j) {
+                    for (int k=0; k<missingRatios.length; ++k)
+                        table[i][j][k] += results[rpt][i][j][k];
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Misses the data of a repeat and a missing ratio, imputes it and evaluates every classifier on it.
+     * @return the performance of every classifier.
+     */
+    protected double[] runTask(int rpt, int k, int j) throws Exception {
+        Instances imputed;
+        if (imputers[j] == null) { // Complete dataset, which the folds do not modify.
+            imputed = original;
+        } else { // Imputed dataset.
+            KangMisser misser = new KangMisser(missMin, missMax);
+            misser.setSeed(taskSeed(seed, rpt, k));
+            Instances missed = misser.miss(original, missingRatios[k], classIndex);
+            Imputer imputer = (Imputer) imputers[j].getDeclaredConstructor().newInstance();
+            imputed = imputer.impute(missed, classIndex);
+        }
+
+        CVFolds folds = new CVFolds(imputed, NUM_FOLDS, new Random(taskSeed(seed, rpt, k, FOLD_COORDINATE)));
+        double[] performance = new double[classifiers.length];
+        for (int i=0; i<classifiers.length; ++i) {
+            Classifier classifier = (Classifier) classifiers[i].getDeclaredConstructor().newInstance();
+            performance[i] = folds.performance(classifier);
+        }
+        return performance;
+    }
+
+    /**
+     * Derives the seed of a task from the grid seed and the task coordinates by the SplitMix64 finalizer.
+     */
+    protected static long taskSeed(long seed, int... coordinates) {
+        long h = seed;
+        for (int c: coordinates) {
+            h = (h + c + 1) * 0x9E3779B97F4A7C15L;
+            h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+            h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+            h ^= h >>> 31;
+        }
+        return h;
+    }
+
+    protected static String formatMillis(long millis) {
+        long seconds = millis / 1000;
+        return String.format("%dh%02dm%02ds", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+}
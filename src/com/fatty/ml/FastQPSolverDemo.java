@@ -27,15 +27,17 @@ public class FastQPSolverDemo {
             Acap[d][j] = 1.0;
         }
         bcap[d] = 1.0;
+        DenseMatrix dense = DenseMatrix.of(A);
         int repeat = 50;
 
-        // Solution A.
-        double[] wa = null;
+        // Solution A. The workspace is reused among the runs.
+        UniformLLR.SolverWorkspace workspace = new UniformLLR.SolverWorkspace(d+1, k);
+        double[] wa = new double[k];
         double ta = System.nanoTime();
         for (int i=0; i<repeat; ++i)
-            wa = UniformLLR.smoBased1dLLRSolver(Acap, bcap);
+            wa = UniformLLR.smoBased1dLLRSolver(Acap, bcap, d+1, k, workspace, wa);
         ta = System.nanoTime()-ta;
-        displayErr(A, b, wa);
+        displayErr(dense, b, wa);
 
         // Solution B. Compare with slow solver.
         double[] wb = null;
@@ -43,25 +45,22 @@ public class FastQPSolverDemo {
         for (int i=0; i<repeat; ++i)
             wb = UniformLLR.slowSolver(A, b);
         tb = System.nanoTime()-tb;
-        displayErr(A, b, wb);
+        displayErr(dense, b, wb);
 
         // Solution C. Fast 2d solver.
-        double[] wc = null;
+        double[] wc = new double[k];
         double tc = System.nanoTime();
         for (int i=0; i<repeat; ++i)
-            wc = UniformLLR.smoBased2dLLRSolver(A, b);
+            wc = UniformLLR.smoBased2dLLRSolver(A, b, d, k, workspace, wc);
         tc = System.nanoTime()-tc;
-        displayErr(A, b, wc);
+        displayErr(dense, b, wc);
 
         System.out.printf("Time costed:\nA: %.3f, B: %.3f, C: %.3f\n", ta/1.0/repeat/1e6, tb/1.0/repeat/1e6, tc/1.0/repeat/1e6);
     }
 
-    public static void displayErr(double[][] A, double[] b, double[] wb) {
-        double[] diff = UniformLLR.vecSub(UniformLLR.matMultiply(A, wb), b);
-        double sum = 0;
-        for (double x: diff) {
-            sum += x*x;
-        }
-        System.out.println("The difference is: " + Math.sqrt(sum));
+    public static void displayErr(DenseMatrix A, double[] b, double[] wb) {
+        double[] diff = A.multiply(wb);
+        DenseMatrix.axpy(diff.length, -1.0, b, 0, diff, 0);
+        System.out.println("The difference is: " + Math.sqrt(DenseMatrix.dot(diff, 0, diff, 0, diff.length)));
     }
 }
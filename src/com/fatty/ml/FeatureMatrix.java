@@ -0,0 +1,446 @@
+package com.fatty.ml;
+
+import com.fatty.Helper;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * A packed row-major snapshot of a data set. The values are kept in one contiguous array and the missing
+ * values are recorded in a bitmap, so that the hot loops of kNN search and reconstruction do not need to go through
+ * the weka instance accessors.
+ *
+ * The values are stored in one of the {@link Precision} formats. The compact formats keep the values in a float or
+ * a short buffer, which could live off the Java heap, and every accessor decodes them to doubles on the fly, so the
+ * distances and the reconstructions are computed in double precision on the stored values. A single buffer holds
+ * at most 2^31-1 bytes, i.e. about 536 million float values or 1073 million short values.
+ */
+public class FeatureMatrix implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The storage format of the values.
+     * <ul>
+     * <li>Float64 keeps the exact doubles, 8 bytes per value.</li>
+     * <li>Float32 rounds every value to the nearest float, 4 bytes per value. The relative error of a value is at
+     * most 2^-24, about 6e-8, which is far below the noise of any data set we impute, so the neighbours and the
+     * imputed values agree with Float64 to about 7 significant digits except for near ties.</li>
+     * <li>Quantized16 maps every column linearly onto 65535 levels between its minimum and maximum, 2 bytes per
+     * value. The absolute error of a value is at most (max-min)/131068 of its column, i.e. 0.00076% of the range.
+     * A column of integers spanning fewer than 65535 levels, such as a nominal attribute, is stored exactly.
+     * The distances shift by the same order, so near ties among the neighbours could be broken differently and the
+     * imputed values typically move by about 1e-5 of the column range.</li>
+     * </ul>
+     */
+    public enum Precision {
+        Float64, Float32, Quantized16
+    }
+
+    // The level of a missing value in the quantized format.
+    protected static final int MISSING_LEVEL = 0xFFFF;
+    protected static final int MAX_LEVEL = MISSING_LEVEL - 1;
+
+    protected final int numRows;
+    protected final int numColumns;
+    protected final Precision precision;
+    protected final boolean direct;
+    // The values of the Float64 format, null otherwise.
+    protected final double[] values;
+    // The values of the Float32 and Quantized16 formats. The buffers are serialized by hand.
+    protected transient FloatBuffer floats;
+    protected transient ShortBuffer levels;
+    // The minimum and the level step of every column in the quantized format.
+    protected final double[] minimums;
+    protected final double[] steps;
+    protected final long[] missing;
+    protected transient volatile double[] columns;
+
+    public FeatureMatrix(Instances instances) {
+        this(null, instances);
+    }
+
+    /**
+     * Builds a matrix of the rows of a base matrix followed by the appended instances, in the format of the base
+     * matrix.
+     * @param base the base matrix, which could be null.
+     * @param instances the instances to append, with the same number of attributes as the base matrix.
+     */
+    public FeatureMatrix(FeatureMatrix base, Instances instances) {
+        this(base, instances, base == null ? Precision.Float64 : base.precision, base != null && base.direct);
+    }
+
+    /**
+     * Builds a matrix of the rows of a base matrix followed by the appended instances. The quantized format is
+     * fitted to the ranges of all the rows, so the base rows are re-quantized if the ranges grow.
+     * @param base the base matrix, which could be null.
+     * @param instances the instances to append, with the same number of attributes as the base matrix.
+     * @param precision the storage format.
+     * @param direct whether the compact formats are stored off the Java heap. It is ignored for Float64.
+     */
+    public FeatureMatrix(FeatureMatrix base, Instances instances, Precision precision, boolean direct) {
+        Helper.checkNotNull("instances", instances);
+        Helper.checkNotNull("precision", precision);
+        if (base != null)
+            Helper.checkIntEqual(base.numColumns, instances.numAttributes());
+        int baseRows = base == null ? 0 : base.numRows;
+        this.numRows = baseRows + instances.numInstances();
+        this.numColumns = instances.numAttributes();
+        this.precision = precision;
+        this.direct = direct && precision != Precision.Float64;
+        int size = Math.multiplyExact(numRows, numColumns);
+        this.values = precision == Precision.Float64 ? new double[size] : null;
+        this.missing = new long[(size + 63) >>> 6];
+        this.minimums = precision == Precision.Quantized16 ? new double[numColumns] : null;
+        this.steps = precision == Precision.Quantized16 ? new double[numColumns] : null;
+        if (precision == Precision.Quantized16)
+            fitLevels(base, instances);
+        allocate(size);
+
+        int offset = 0;
+        if (base != null) {
+            if (values != null && base.values != null) {
+                System.arraycopy(base.values, 0, values, 0, base.values.length);
+                offset = base.values.length;
+            } else {
+                for (int end=baseRows*numColumns; offset<end; ++offset)
+                    put(offset, base.get(offset));
+            }
+            System.arraycopy(base.missing, 0, missing, 0, base.missing.length);
+        }
+        for (Instance instance: instances) {
+            for (int i=0; i<numColumns; ++i, ++offset) {
+                if (instance.isMissing(i)) {
+                    missing[offset >>> 6] |= 1L << offset;
+                    put(offset, Double.NaN);
+                } else {
+                    put(offset, instance.value(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Wraps packed values in the Float64 format, where NaN marks a missing value.
+     */
+    public FeatureMatrix(int numRows, int numColumns, double[] values) {
+        Helper.checkNotNull("values", values);
+        Helper.checkIntEqual(numRows * numColumns, values.length);
+        this.numRows = numRows;
+        this.numColumns = numColumns;
+        this.precision = Precision.Float64;
+        this.direct = false;
+        this.values = values;
+        this.minimums = null;
+        this.steps = null;
+        this.missing = new long[(values.length + 63) >>> 6];
+        for (int offset=0; offset<values.length; ++offset) {
+            if (Double.isNaN(values[offset]))
+                missing[offset >>> 6] |= 1L << offset;
+        }
+    }
+
+    /**
+     * Fits the quantization levels of every column to the range of its values in the base matrix and the instances.
+     */
+    protected void fitLevels(FeatureMatrix base, Instances instances) {
+        double[] maximums = new double[numColumns];
+        boolean[] integral = new boolean[numColumns];
+        Arrays.fill(minimums, Double.POSITIVE_INFINITY);
+        Arrays.fill(maximums, Double.NEGATIVE_INFINITY);
+        Arrays.fill(integral, true);
+        for (int row=0; base!=null && row<base.numRows; ++row) {
+            for (int i=0; i<numColumns; ++i) {
+                if (!base.isMissing(row, i))
+                    fitLevel(i, base.value(row, i), maximums, integral);
+            }
+        }
+        for (Instance instance: instances) {
+            for (int i=0; i<numColumns; ++i) {
+                if (!instance.isMissing(i))
+                    fitLevel(i, instance.value(i), maximums, integral);
+            }
+        }
+        for (int i=0; i<numColumns; ++i) {
+            if (minimums[i] > maximums[i]) { // No values at all.
+                minimums[i] = 0.0;
+                steps[i] = 1.0;
+            } else if (integral[i] && maximums[i] - minimums[i] <= MAX_LEVEL) {
+                steps[i] = 1.0;
+            } else {
+                steps[i] = maximums[i] > minimums[i] ? (maximums[i] - minimums[i]) / MAX_LEVEL : 1.0;
+            }
+        }
+    }
+
+    protected void fitLevel(int column, double v, double[] maximums, boolean[] integral) {
+        minimums[column] = Math.min(minimums[column], v);
+        maximums[column] = Math.max(maximums[column], v);
+        integral[column] &= v == Math.rint(v);
+    }
+
+    protected void allocate(int size) {
+        if (precision == Precision.Float32) {
+            floats = direct ? ByteBuffer.allocateDirect(Math.multiplyExact(size, 4))
+                    .order(ByteOrder.nativeOrder()).asFloatBuffer() : FloatBuffer.allocate(size);
+        } else if (precision == Precision.Quantized16) {
+            levels = direct ? ByteBuffer.allocateDirect(Math.multiplyExact(size, 2))
+                    .order(ByteOrder.nativeOrder()).asShortBuffer() : ShortBuffer.allocate(size);
+        }
+    }
+
+    protected void put(int offset, double v) {
+        if (values != null) {
+            values[offset] = v;
+        } else if (floats != null) {
+            floats.put(offset, (float) v);
+        } else if (v != v) {
+            levels.put(offset, (short) MISSING_LEVEL);
+        } else {
+            int column = offset % numColumns;
+            long level = Math.round((v - minimums[column]) / steps[column]);
+            levels.put(offset, (short) Math.max(0, Math.min(MAX_LEVEL, level)));
+        }
+    }
+
+    /**
+     * Returns the value at an offset of the packed rows, decoded to a double. A missing value is NaN.
+     */
+    public double get(int offset) {
+        if (values != null)
+            return values[offset];
+        if (floats != null)
+            return floats.get(offset);
+        int level = levels.get(offset) & 0xFFFF;
+        if (level == MISSING_LEVEL)
+            return Double.NaN;
+        int column = offset % numColumns;
+        return minimums[column] + level * steps[column];
+    }
+
+    public int numRows() {
+        return numRows;
+    }
+
+    public int numColumns() {
+        return numColumns;
+    }
+
+    public Precision precision() {
+        return precision;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Returns the number of bytes of the stored values and the missing bitmap.
+     */
+    public long bytes() {
+        long size = (long) numRows * numColumns;
+        long width = precision == Precision.Float64 ? 8 : precision == Precision.Float32 ? 4 : 2;
+        return size * width + 8L * missing.length;
+    }
+
+    /**
+     * Returns the backing array of the Float64 format. Row r starts at offset r*numColumns.
+     * @throws UnsupportedOperationException if the values are stored in a compact format.
+     */
+    public double[] values() {
+        if (values == null) {
+            throw new UnsupportedOperationException("The values are stored as " + precision + ".");
+        }
+        return values;
+    }
+
+    /**
+     * Returns whether the values are kept in a double array, i.e. whether {@link #values()} is available.
+     */
+    public boolean hasValues() {
+        return values != null;
+    }
+
+    public int offset(int row) {
+        return row * numColumns;
+    }
+
+    public double value(int row, int column) {
+        return get(row * numColumns + column);
+    }
+
+    /**
+     * Copies the values of a row on the given columns.
+     * @param row the row index.
+     * @param columns the columns to copy.
+     * @param out the output array.
+     * @param outOffset where the first value is written.
+     */
+    public void gather(int row, int[] columns, double[] out, int outOffset) {
+        int offset = row * numColumns;
+        if (values != null) {
+            for (int i=0; i<columns.length; ++i)
+                out[outOffset + i] = values[offset + columns[i]];
+        } else {
+            for (int i=0; i<columns.length; ++i)
+                out[outOffset + i] = get(offset + columns[i]);
+        }
+    }
+
+    /**
+     * Copies all the values of a row.
+     */
+    public void row(int row, double[] out) {
+        int offset = row * numColumns;
+        if (values != null) {
+            System.arraycopy(values, offset, out, 0, numColumns);
+        } else {
+            for (int i=0; i<numColumns; ++i)
+                out[i] = get(offset + i);
+        }
+    }
+
+    public boolean isMissing(int row, int column) {
+        int offset = row * numColumns + column;
+        return (missing[offset >>> 6] & (1L << offset)) != 0;
+    }
+
+    /**
+     * Calculates the L1 distance between a row and a query over the cared columns only.
+     * @param row the row index.
+     * @param query the query values, indexed by column.
+     * @param caredIndices the columns to compare.
+     * @return the distance.
+     */
+    public double l1Distance(int row, double[] query, int[] caredIndices) {
+        int offset = row * numColumns;
+        double d = 0.0;
+        if (values != null) {
+            for (int i: caredIndices) {
+                d += Math.abs(values[offset + i] - query[i]);
+            }
+        } else {
+            for (int i: caredIndices) {
+                d += Math.abs(get(offset + i) - query[i]);
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Calculates the L1 distance between two rows over the given columns.
+     */
+    public double l1Distance(int a, int b, int[] columns) {
+        int oa = a * numColumns, ob = b * numColumns;
+        double d = 0.0;
+        if (values != null) {
+            for (int i: columns)
+                d += Math.abs(values[oa + i] - values[ob + i]);
+        } else {
+            for (int i: columns)
+                d += Math.abs(get(oa + i) - get(ob + i));
+        }
+        return d;
+    }
+
+    /**
+     * Calculates the squared L2 distance between two rows over the given columns.
+     */
+    public double squaredL2Distance(int a, int b, int[] columns) {
+        int oa = a * numColumns, ob = b * numColumns;
+        double d = 0.0;
+        if (values != null) {
+            for (int i: columns) {
+                double x = values[oa + i] - values[ob + i];
+                d += x * x;
+            }
+        } else {
+            for (int i: columns) {
+                double x = get(oa + i) - get(ob + i);
+                d += x * x;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Calculates the L1 distances between a range of rows and a query over the cared columns with a column-major
+     * kernel. The distances are accumulated one cared column at a time over contiguous column arrays, a loop without
+     * reductions that the JIT compiler vectorizes. The columns are summed in the same order as
+     * {@link #l1Distance(int, double[], int[])}, so the result is identical. A column-major copy of the values is
+     * built on the first call, which doubles the memory of the matrix. The compact formats do not keep such a copy
+     * and compute the distances row by row instead.
+     * @param query the query values, indexed by column.
+     * @param caredIndices the columns to compare.
+     * @param from the first row, inclusive.
+     * @param to the last row, exclusive.
+     * @param distances the output distances, where the distance of row r is written at r-from.
+     */
+    public void columnL1Distances(double[] query, int[] caredIndices, int from, int to, double[] distances) {
+        int n = to - from;
+        if (values == null) {
+            for (int row=0; row<n; ++row)
+                distances[row] = l1Distance(from + row, query, caredIndices);
+            return;
+        }
+        double[] c = columns();
+        Arrays.fill(distances, 0, n, 0.0);
+        for (int i: caredIndices) {
+            int base = i * numRows + from;
+            double q = query[i];
+            for (int row=0; row<n; ++row) {
+                distances[row] += Math.abs(c[base + row] - q);
+            }
+        }
+    }
+
+    /**
+     * Returns the column-major copy of the values, building it if necessary. Column c starts at offset c*numRows.
+     * The copy is kept at double precision for the life of the matrix, next to the row-major values.
+     */
+    public double[] columns() {
+        double[] c = columns;
+        if (c == null) {
+            synchronized (this) {
+                c = columns;
+                if (c == null) {
+                    c = new double[numRows * numColumns];
+                    for (int row=0, offset=0; row<numRows; ++row) {
+                        for (int i=0; i<numColumns; ++i, ++offset) {
+                            c[i * numRows + row] = get(offset);
+                        }
+                    }
+                    columns = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        int size = numRows * numColumns;
+        for (int offset=0; offset<size && floats != null; ++offset)
+            out.writeFloat(floats.get(offset));
+        for (int offset=0; offset<size && levels != null; ++offset)
+            out.writeShort(levels.get(offset));
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int size = numRows * numColumns;
+        allocate(size);
+        for (int offset=0; offset<size && floats != null; ++offset)
+            floats.put(offset, in.readFloat());
+        for (int offset=0; offset<size && levels != null; ++offset)
+            levels.put(offset, in.readShort());
+    }
+}
@@ -0,0 +1,111 @@
+package com.fatty.ml;
+
+import com.fatty.Helper;
+
+import java.util.Arrays;
+
+/**
+ * Fills the Gram matrices of the LLR QP problems, i.e. the dot products between the neighbour rows projected onto
+ * the cared columns.
+ * For wide rows the pairwise products are kept in a direct-mapped cache keyed by the row ids, since the neighbour
+ * sets of nearby queries overlap heavily. A cache belongs to one thread and is cleared whenever the rows change. The
+ * cache tables are allocated on the first fill that uses them, so a cache which is always bypassed costs nothing.
+ */
+public class GramCache {
+    protected static int DEFAULT_BITS = 16;
+    // Below this dimension computing a product is cheaper than looking it up.
+    protected static int MIN_CACHED_DIMENSION = 16;
+
+    protected final int bits;
+    protected long[] keys;
+    protected double[] products;
+    protected final int mask;
+    protected Object owner;
+    protected long hits;
+    protected long misses;
+
+    public GramCache() {
+        this(DEFAULT_BITS);
+    }
+
+    /**
+     * @param bits the cache holds 2^bits products.
+     */
+    public GramCache(int bits) {
+        Helper.checkPositive("bits", bits);
+        if (bits > 24) {
+            throw new IllegalArgumentException("Expected at most 24 bits, but got " + bits);
+        }
+        this.bits = bits;
+        this.mask = (1 << bits) - 1;
+    }
+
+    public long hits() {
+        return hits;
+    }
+
+    public long misses() {
+        return misses;
+    }
+
+    /**
+     * Fills the leading k x k block of a Gram matrix.
+     * @param rows the packed rows.
+     * @param offsets the offsets of the k rows in the packed array.
+     * @param dimension the number of values of each row.
+     * @param ids the ids of the k rows, which identify the rows of the owner.
+     * @param norms the squared norms of the rows indexed by id, or null to compute them.
+     * @param bias the constant added to every entry, i.e. the product of the augmented constant columns.
+     * @param owner the identity of the rows, e.g. a projection, or null to bypass the cache.
+     * @param k the number of rows.
+     * @param gram the output matrix.
+     */
+    public void fill(double[] rows, int[] offsets, int dimension, int[] ids, double[] norms, double bias,
+                     Object owner, int k, double[][] gram) {
+        boolean cached = owner != null && dimension >= MIN_CACHED_DIMENSION;
+        if (cached && owner != this.owner) {
+            if (keys == null) {
+                keys = new long[1 << bits];
+                products = new double[1 << bits];
+            }
+            Arrays.fill(keys, -1L);
+            this.owner = owner;
+        }
+        for (int i=0; i<k; ++i) {
+            int oi = offsets[i];
+            double[] gi = gram[i];
+            gi[i] = (norms != null ? norms[ids[i]] : dot(rows, oi, oi, dimension)) + bias;
+            for (int j=i+1; j<k; ++j) {
+                int oj = offsets[j];
+                double product;
+                if (cached) {
+                    int a = Math.min(ids[i], ids[j]), b = Math.max(ids[i], ids[j]);
+                    long key = ((long) a << 32) | b;
+                    int slot = slot(key);
+                    if (keys[slot] == key) {
+                        product = products[slot];
+                        ++hits;
+                    } else {
+                        product = dot(rows, oi, oj, dimension);
+                        keys[slot] = key;
+                        products[slot] = product;
+                        ++misses;
+                    }
+                } else {
+                    product = dot(rows, oi, oj, dimension);
+                }
+                gi[j] = product + bias;
+                gram[j][i] = gi[j];
+            }
+        }
+    }
+
+    protected int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 40) & mask;
+    }
+
+    protected static double dot(double[] rows, int a, int b, int dimension) {
+        return DenseMatrix.dot(rows, a, rows, b, dimension);
+    }
+}
@@ -0,0 +1,436 @@
+package com.fatty.ml;
+
+import com.fatty.BoundedMaxHeap;
+import com.fatty.Helper;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * An approximate k-NN index over the rows of a feature matrix, organized as a hierarchical navigable small world
+ * graph under the L1 distance. Nodes are identified by their row indices and the vectors are read directly from the
+ * packed matrix. The graph is built on the split columns, while a query only compares its cared columns.
+ *
+ * M bounds the degree of a node (2*M on the bottom layer), efConstruction is the beam width while inserting and
+ * efSearch is the beam width while querying, which trades latency for recall. Nodes could be inserted concurrently;
+ * the levels of the nodes are derived from their ids, so a serial build is fully reproducible, while the links of a
+ * concurrent build depend on the order the threads insert the nodes in.
+ */
+public class HNSWIndex {
+    protected static int DEFAULT_M = 16;
+    protected static int DEFAULT_EF_CONSTRUCTION = 200;
+    protected static int DEFAULT_EF_SEARCH = 64;
+    protected static long LEVEL_SEED = 0x9E3779B97F4A7C15L;
+
+    protected final FeatureMatrix features;
+    protected final int[] splitColumns;
+    protected final int m;
+    protected final int efConstruction;
+    protected int efSearch;
+    protected final double levelMultiplier;
+    // links[node][level] holds the number of neighbours at [0] followed by the neighbour ids.
+    protected final int[][][] links;
+    protected final Object[] locks;
+    protected int entryPoint = -1;
+    protected int maxLevel = -1;
+    protected final ThreadLocal<SearchContext> contexts;
+
+    public HNSWIndex(FeatureMatrix features, int[] splitColumns) {
+        this(features, splitColumns, DEFAULT_M, DEFAULT_EF_CONSTRUCTION, DEFAULT_EF_SEARCH);
+    }
+
+    public HNSWIndex(FeatureMatrix features, int[] splitColumns, int m, int efConstruction, int efSearch) {
+        Helper.checkNotNull("features", features);
+        Helper.checkNotNull("splitColumns", splitColumns);
+        if (m < 2) {
+            throw new IllegalArgumentException("Expected M to be at least 2, but got " + m);
+        }
+        Helper.checkPositive("efConstruction", efConstruction);
+        Helper.checkPositive("efSearch", efSearch);
+        this.features = features;
+        this.splitColumns = splitColumns.clone();
+        this.m = m;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.efSearch = efSearch;
+        this.levelMultiplier = 1.0 / Math.log(m);
+
+        int numRows = features.numRows();
+        this.links = new int[numRows][][];
+        this.locks = new Object[numRows];
+        for (int i=0; i<numRows; ++i) {
+            int level = levelOf(i);
+            links[i] = new int[level+1][];
+            for (int l=0; l<=level; ++l)
+                links[i][l] = new int[1 + maxDegree(l)];
+            locks[i] = new Object();
+        }
+        this.contexts = ThreadLocal.withInitial(() -> new SearchContext(numRows));
+    }
+
+    public int numNodes() {
+        return links.length;
+    }
+
+    public void setEfSearch(int efSearch) {
+        Helper.checkPositive("efSearch", efSearch);
+        this.efSearch = efSearch;
+    }
+
+    /**
+     * Inserts all the rows of the matrix.
+     * @param numThreads the number of threads to insert concurrently.
+     */
+    public void build(int numThreads) throws InterruptedException {
+        Helper.checkPositive("numThreads", numThreads);
+        int numRows = links.length;
+        if (numRows == 0)
+            return;
+        insert(0);
+        if (numThreads <= 1) {
+            for (int i=1; i<numRows; ++i)
+                insert(i);
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(numThreads);
+            try {
+                pool.submit(() -> IntStream.range(1, numRows).parallel().forEach(this::insert)).join();
+            } finally {
+                pool.shutdown();
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Inserts a row into the graph. It is safe to insert different rows concurrently.
+     */
+    public void insert(int node) {
+        SearchContext context = contexts.get();
+        double[] query = context.vector(features, node);
+        int level = links[node].length - 1;
+
+        int currentEntry, currentMaxLevel;
+        synchronized (this) {
+            if (entryPoint < 0) {
+                entryPoint = node;
+                maxLevel = level;
+                return;
+            }
+            currentEntry = entryPoint;
+            currentMaxLevel = maxLevel;
+        }
+
+        // Greedy descent on the upper layers.
+        int current = currentEntry;
+        for (int l=currentMaxLevel; l>level; --l)
+            current = greedy(current, query, splitColumns, l, context);
+
+        // Connect on the lower layers.
+        for (int l=Math.min(level, currentMaxLevel); l>=0; --l) {
+            BoundedMaxHeap candidates = searchLayer(current, query, splitColumns, efConstruction, l, context);
+            double[] distances = new double[candidates.size()];
+            int[] ids = candidates.drainSortedIndices(distances);
+            int[] selected = selectNeighbors(ids, distances, m);
+            synchronized (locks[node]) {
+                int[] own = links[node][l];
+                own[0] = selected.length;
+                System.arraycopy(selected, 0, own, 1, selected.length);
+            }
+            for (int neighbor: selected)
+                connect(neighbor, node, l);
+            if (ids.length > 0)
+                current = ids[0];
+        }
+
+        if (level > currentMaxLevel) {
+            synchronized (this) {
+                if (level > maxLevel) {
+                    entryPoint = node;
+                    maxLevel = level;
+                }
+            }
+        }
+    }
+
+    /**
+     * Searches the approximate k nearest rows of a query.
+     * @param query the query values, indexed by column.
+     * @param caredIndices the columns to compare.
+     * @param heap the heap to collect the neighbours, whose capacity is k. It is not cleared before searching.
+     */
+    public void search(double[] query, int[] caredIndices, BoundedMaxHeap heap) {
+        int currentEntry, currentMaxLevel;
+        synchronized (this) {
+            currentEntry = entryPoint;
+            currentMaxLevel = maxLevel;
+        }
+        if (currentEntry < 0 || heap.capacity() == 0)
+            return;
+
+        SearchContext context = contexts.get();
+        int current = currentEntry;
+        for (int l=currentMaxLevel; l>0; --l)
+            current = greedy(current, query, caredIndices, l, context);
+        BoundedMaxHeap found = searchLayer(current, query, caredIndices, Math.max(efSearch, heap.capacity()), 0,
+                context);
+        int size = found.size();
+        for (int i=0; i<size; ++i)
+            heap.offer(found.indexAt(i), found.valueAt(i));
+    }
+
+    /**
+     * Walks greedily towards the query on a layer.
+     * @return the nearest node found.
+     */
+    protected int greedy(int current, double[] query, int[] caredIndices, int level, SearchContext context) {
+        double currentDistance = distance(current, query, caredIndices);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int count = copyLinks(current, level, context);
+            for (int i=0; i<count; ++i) {
+                int candidate = context.neighbors[i];
+                double d = distance(candidate, query, caredIndices);
+                if (d < currentDistance || (d == currentDistance && candidate < current)) {
+                    currentDistance = d;
+                    current = candidate;
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Runs a beam search of width ef on a layer.
+     * @return the heap of the nearest nodes found, owned by the search context.
+     */
+    protected BoundedMaxHeap searchLayer(int entry, double[] query, int[] caredIndices, int ef, int level,
+                                         SearchContext context) {
+        context.reset(ef);
+        BoundedMaxHeap results = context.results;
+        MinHeap candidates = context.candidates;
+        double d = distance(entry, query, caredIndices);
+        context.visit(entry);
+        candidates.push(entry, d);
+        results.offer(entry, d);
+        while (candidates.size() > 0) {
+            double nearest = candidates.peekValue();
+            if (nearest > results.threshold())
+                break;
+            int current = candidates.pop();
+            int count = copyLinks(current, level, context);
+            for (int i=0; i<count; ++i) {
+                int neighbor = context.neighbors[i];
+                if (context.visit(neighbor)) {
+                    double nd = distance(neighbor, query, caredIndices);
+                    if (!(nd > results.threshold())) {
+                        candidates.push(neighbor, nd);
+                        results.offer(neighbor, nd);
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    protected void connect(int node, int neighbor, int level) {
+        synchronized (locks[node]) {
+            int[] own = links[node][level];
+            int count = own[0];
+            for (int i=1; i<=count; ++i) {
+                if (own[i] == neighbor)
+                    return;
+            }
+            if (count + 1 < own.length) {
+                own[count+1] = neighbor;
+                own[0] = count + 1;
+                return;
+            }
+
+            // Shrink the neighbour list with the selection heuristic.
+            BoundedMaxHeap sorter = new BoundedMaxHeap(count + 1);
+            for (int i=1; i<=count; ++i)
+                sorter.offer(own[i], rowDistance(node, own[i]));
+            sorter.offer(neighbor, rowDistance(node, neighbor));
+            double[] distances = new double[count + 1];
+            int[] sorted = sorter.drainSortedIndices(distances);
+            int[] selected = selectNeighbors(sorted, distances, own.length - 1);
+            own[0] = selected.length;
+            System.arraycopy(selected, 0, own, 1, selected.length);
+        }
+    }
+
+    /**
+     * Selects at most max neighbours among the candidates sorted by ascending distance to the base node, preferring
+     * candidates that are closer to the base node than to any already selected one, which keeps the graph navigable.
+     */
+    protected int[] selectNeighbors(int[] sortedCandidates, double[] distances, int max) {
+        int[] selected = new int[Math.min(max, sortedCandidates.length)];
+        int numSelected = 0;
+        for (int i=0; i<sortedCandidates.length && numSelected<selected.length; ++i) {
+            int candidate = sortedCandidates[i];
+            boolean good = true;
+            for (int j=0; j<numSelected; ++j) {
+                if (rowDistance(candidate, selected[j]) < distances[i]) {
+                    good = false;
+                    break;
+                }
+            }
+            if (good)
+                selected[numSelected++] = candidate;
+        }
+        return numSelected == selected.length ? selected : Arrays.copyOf(selected, numSelected);
+    }
+
+    protected int copyLinks(int node, int level, SearchContext context) {
+        int[][] nodeLinks = links[node];
+        if (level >= nodeLinks.length)
+            return 0;
+        synchronized (locks[node]) {
+            int[] own = nodeLinks[level];
+            int count = own[0];
+            System.arraycopy(own, 1, context.neighbors, 0, count);
+            return count;
+        }
+    }
+
+    protected double distance(int row, double[] query, int[] caredIndices) {
+        return features.l1Distance(row, query, caredIndices);
+    }
+
+    protected double rowDistance(int a, int b) {
+        return features.l1Distance(a, b, splitColumns);
+    }
+
+    protected int maxDegree(int level) {
+        return level == 0 ? 2 * m : m;
+    }
+
+    /**
+     * Draws the level of a node from an exponentially decaying distribution, seeded by the node id.
+     */
+    protected int levelOf(int node) {
+        long z = LEVEL_SEED + node * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        double u = ((z >>> 11) + 1) * 0x1.0p-53;
+        return (int) Math.floor(-Math.log(u) * levelMultiplier);
+    }
+
+    /**
+     * Per-thread buffers of the graph traversal.
+     */
+    protected class SearchContext {
+        protected final int[] visited;
+        protected int generation;
+        protected final int[] neighbors;
+        protected final MinHeap candidates;
+        protected BoundedMaxHeap results;
+        protected double[] vector;
+
+        protected SearchContext(int numRows) {
+            this.visited = new int[numRows];
+            this.generation = 0;
+            this.neighbors = new int[2 * m + 1];
+            this.candidates = new MinHeap(Math.max(16, efConstruction));
+        }
+
+        protected void reset(int ef) {
+            if (++generation == 0) {
+                Arrays.fill(visited, 0);
+                generation = 1;
+            }
+            candidates.clear();
+            if (results == null || results.capacity() != ef)
+                results = new BoundedMaxHeap(ef);
+            results.clear();
+        }
+
+        /**
+         * Marks a node visited.
+         * @return true if the node was not visited yet.
+         */
+        protected boolean visit(int node) {
+            if (visited[node] == generation)
+                return false;
+            visited[node] = generation;
+            return true;
+        }
+
+        protected double[] vector(FeatureMatrix features, int row) {
+            int n = features.numColumns();
+            if (vector == null || vector.length != n)
+                vector = new double[n];
+            features.row(row, vector);
+            return vector;
+        }
+    }
+
+    /**
+     * A growable primitive min-heap of (value, id) pairs.
+     */
+    protected static class MinHeap {
+        protected double[] values;
+        protected int[] ids;
+        protected int size;
+
+        protected MinHeap(int capacity) {
+            values = new double[capacity];
+            ids = new int[capacity];
+        }
+
+        protected int size() {
+            return size;
+        }
+
+        protected void clear() {
+            size = 0;
+        }
+
+        protected double peekValue() {
+            return values[0];
+        }
+
+        protected void push(int id, double value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (values[parent] <= value)
+                    break;
+                values[i] = values[parent];
+                ids[i] = ids[parent];
+                i = parent;
+            }
+            values[i] = value;
+            ids[i] = id;
+        }
+
+        protected int pop() {
+            int top = ids[0];
+            --size;
+            double value = values[size];
+            int id = ids[size];
+            int i = 0, half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && values[child + 1] < values[child])
+                    ++child;
+                if (value <= values[child])
+                    break;
+                values[i] = values[child];
+                ids[i] = ids[child];
+                i = child;
+            }
+            values[i] = value;
+            ids[i] = id;
+            return top;
+        }
+    }
+}
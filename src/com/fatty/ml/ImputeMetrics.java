@@ -0,0 +1,228 @@
+package com.fatty.ml;
+
+import com.fatty.Helper;
+import com.fatty.LatencyHistogram;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The process-wide metrics of the imputation runs: a latency histogram per phase of {@link UniformLLR} and the
+ * imputers, and counters of the searches, the solves and the rows. It tells where the time of a slow run goes, e.g.
+ * the graph build, the neighbor search, the QP solve or the copies of the weka data sets.
+ *
+ * The metrics are off by default and cost a volatile read and a branch per call site then. They are turned on by the
+ * system property handlemissing.metrics=true, by {@link #setEnabled(boolean)} or at runtime over JMX, as the MXBean
+ * is always registered. A summary line is printed periodically if handlemissing.metrics.logInterval is set to a
+ * number of seconds, or once {@link #setLogIntervalSeconds(long)} is called.
+ */
+public class ImputeMetrics implements ImputeMetricsMXBean {
+    public static final String OBJECT_NAME = "com.fatty.ml:type=ImputeMetrics";
+
+    /**
+     * The timed phases.
+     */
+    public enum Phase {
+        Build, // UniformLLR.buildClassifier, including the index.
+        Index, // The k-NN graph, tree or HNSW build, or its restore from a snapshot.
+        Search, // The k-NN search of one row.
+        Solve, // The reconstruction weights of one row.
+        Fit, // Imputer.fit.
+        Transform, // Imputer.transform, including the copy.
+        Copy // The copy of the rows to transform.
+    }
+
+    /**
+     * The counted events.
+     */
+    public enum Counter {
+        NeighboursRequested,
+        NeighboursReturned,
+        ShortSearches, // The searches that returned fewer neighbours than requested.
+        SolverSweeps,
+        UnconvergedSolves,
+        RowsImputed,
+        RowsSkipped, // The complete rows passed to imputeAll, which are left as is.
+        TrainRowsSkipped, // The incomplete rows left out of the trained data.
+        UnreadableSnapshots // The index snapshot files which could not be read and were rebuilt.
+    }
+
+    protected static final ImputeMetrics INSTANCE = new ImputeMetrics();
+    protected static volatile boolean enabled = Boolean.getBoolean("handlemissing.metrics");
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            System.out.println("Failed to register the imputation metrics MBean. Details: " + e.getMessage());
+        }
+        INSTANCE.setLogIntervalSeconds(Long.getLong("handlemissing.metrics.logInterval", 0L));
+    }
+
+    public static ImputeMetrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the start time of a phase, or 0 if the metrics are off.
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * Records a phase started at {@link #start()}, unless the metrics were off then.
+     */
+    public static void stop(Phase phase, long start) {
+        if (start != 0L)
+            INSTANCE.latencies[phase.ordinal()].record(System.nanoTime() - start);
+    }
+
+    public static void add(Counter counter, long n) {
+        if (enabled)
+            INSTANCE.counters[counter.ordinal()].add(n);
+    }
+
+    /**
+     * Records the sweeps of one solve.
+     */
+    public static void solved(int sweeps, boolean converged) {
+        if (enabled) {
+            INSTANCE.sweeps.record(sweeps);
+            INSTANCE.counters[Counter.SolverSweeps.ordinal()].add(sweeps);
+            if (!converged)
+                INSTANCE.counters[Counter.UnconvergedSolves.ordinal()].increment();
+        }
+    }
+
+    protected final LatencyHistogram[] latencies = new LatencyHistogram[Phase.values().length];
+    protected final LongAdder[] counters = new LongAdder[Counter.values().length];
+    // The sweeps per solve.
+    protected final LatencyHistogram sweeps = new LatencyHistogram();
+    protected ScheduledExecutorService logger;
+    protected ScheduledFuture<?> logTask;
+    protected long logIntervalSeconds = 0;
+
+    protected ImputeMetrics() {
+        for (int i=0; i<latencies.length; ++i)
+            latencies[i] = new LatencyHistogram();
+        for (int i=0; i<counters.length; ++i)
+            counters[i] = new LongAdder();
+    }
+
+    public LatencyHistogram latency(Phase phase) {
+        return latencies[phase.ordinal()];
+    }
+
+    public long count(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    public LatencyHistogram solverSweeps() {
+        return sweeps;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        ImputeMetrics.enabled = enabled;
+    }
+
+    @Override
+    public synchronized long getLogIntervalSeconds() {
+        return logIntervalSeconds;
+    }
+
+    /**
+     * Prints the summary every interval while the metrics are on.
+     * @param seconds the interval, or 0 to stop.
+     */
+    @Override
+    public synchronized void setLogIntervalSeconds(long seconds) {
+        Helper.checkNotNegative("seconds", seconds);
+        if (logTask != null) {
+            logTask.cancel(false);
+            logTask = null;
+        }
+        logIntervalSeconds = seconds;
+        if (seconds == 0)
+            return;
+        if (logger == null) {
+            logger = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "impute-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        logTask = logger.scheduleAtFixedRate(() -> {
+            if (enabled)
+                System.out.println(getSummary());
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (Counter counter: Counter.values())
+            map.put(counter.name(), count(counter));
+        return map;
+    }
+
+    @Override
+    public Map<String, Double> getLatencies() {
+        Map<String, Double> map = new LinkedHashMap<>();
+        for (Phase phase: Phase.values()) {
+            LatencyHistogram h = latency(phase);
+            map.put(phase + ".count", (double) h.count());
+            map.put(phase + ".mean", h.mean() / 1e3);
+            map.put(phase + ".p50", h.percentile(50) / 1e3);
+            map.put(phase + ".p90", h.percentile(90) / 1e3);
+            map.put(phase + ".p99", h.percentile(99) / 1e3);
+            map.put(phase + ".max", h.max() / 1e3);
+        }
+        return map;
+    }
+
+    /**
+     * Returns one line of the phases and the counters seen so far.
+     */
+    @Override
+    public String getSummary() {
+        StringBuilder sb = new StringBuilder("Imputation metrics:");
+        for (Phase phase: Phase.values()) {
+            LatencyHistogram h = latency(phase);
+            if (h.count() > 0) {
+                sb.append(String.format(" %s[n=%d mean=%.1fus p50=%.1fus p99=%.1fus max=%.1fus]", phase, h.count(),
+                        h.mean() / 1e3, h.percentile(50) / 1e3, h.percentile(99) / 1e3, h.max() / 1e3));
+            }
+        }
+        if (sweeps.count() > 0)
+            sb.append(String.format(" SweepsPerSolve[mean=%.2f p99=%d]", sweeps.mean(), sweeps.percentile(99)));
+        for (Counter counter: Counter.values()) {
+            long n = count(counter);
+            if (n > 0)
+                sb.append(' ').append(counter).append('=').append(n);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram h: latencies)
+            h.reset();
+        for (LongAdder counter: counters)
+            counter.reset();
+        sweeps.reset();
+    }
+}
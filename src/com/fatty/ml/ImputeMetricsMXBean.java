@@ -0,0 +1,34 @@
+package com.fatty.ml;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link ImputeMetrics}, registered as {@value ImputeMetrics#OBJECT_NAME}.
+ */
+public interface ImputeMetricsMXBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /**
+     * Returns the interval of the periodic log line in seconds, where 0 means it is off.
+     */
+    long getLogIntervalSeconds();
+
+    void setLogIntervalSeconds(long seconds);
+
+    /**
+     * Returns the value of every counter by name.
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * Returns the count and the mean, p50, p90, p99 and max latencies in microseconds of every phase, keyed by
+     * phase and statistic, e.g. "Search.p99".
+     */
+    Map<String, Double> getLatencies();
+
+    String getSummary();
+
+    void reset();
+}
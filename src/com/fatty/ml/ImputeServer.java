@@ -0,0 +1,404 @@
+package com.fatty.ml;
+
+import com.fatty.Helper;
+import com.fatty.LatencyHistogram;
+import com.fatty.ml.imputer.ImputeException;
+import com.fatty.ml.imputer.Imputer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A long-running imputation service on the loopback interface. The imputer is fitted once, e.g. a
+ * {@link com.fatty.ml.imputer.KNNOpt2Imputer} or a {@link com.fatty.ml.imputer.CMeansImputer}, and every request is
+ * imputed against it by {@link Imputer#transform(Instances)}, without refitting.
+ *
+ * The requests are not imputed by the threads that receive them. They are queued, and a single batching thread takes
+ * all the queued requests at once, up to a number of rows, imputes them in one transform and hands every request its
+ * rows back. Every row still gets its own neighbor search and solve, but the rows of the batch share the fixed cost of
+ * a transform, i.e. the copy of the data, the grouping by missing pattern with its attribute split, the solver
+ * workspaces and the thread pool, and rows of the same pattern and neighbors share their Gram matrix. The imputer is
+ * never called concurrently. The batching thread may also linger a little for more requests, which trades latency
+ * for throughput.
+ *
+ * The HTTP protocol is plain text:
+ * <ul>
+ *     <li>POST /impute with one row per line, the values separated by commas in the attribute order and "?" for a
+ *     missing value, answers the imputed rows in the same format and order.</li>
+ *     <li>GET /stats answers the counters and the latency percentiles.</li>
+ * </ul>
+ * The latency of a request is measured from queueing its rows to their imputation, in nanoseconds.
+ */
+public class ImputeServer implements Closeable {
+    protected static int DEFAULT_MAX_BATCH_ROWS = 1024;
+    protected static int DEFAULT_HANDLER_THREADS = 16;
+    protected static long POLL_MILLIS = 100;
+
+    /**
+     * A queued request.
+     */
+    protected static class Request {
+        protected final Instances rows;
+        protected final long start;
+        protected final CompletableFuture<Instances> result = new CompletableFuture<>();
+
+        protected Request(Instances rows) {
+            this.rows = rows;
+            this.start = System.nanoTime();
+        }
+    }
+
+    protected final Imputer imputer;
+    protected final Instances header;
+    protected final HttpServer server;
+    protected final ExecutorService handlers;
+    protected final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    protected final Thread batcher;
+    protected final LatencyHistogram latency = new LatencyHistogram();
+    protected final LongAdder numRequests = new LongAdder();
+    protected final LongAdder numRows = new LongAdder();
+    protected final LongAdder numBatches = new LongAdder();
+    protected final LongAdder numErrors = new LongAdder();
+    protected volatile boolean running = true;
+    protected volatile int maxBatchRows = DEFAULT_MAX_BATCH_ROWS;
+    protected volatile long lingerNanos = 0;
+
+    /**
+     * @param imputer the fitted imputer.
+     * @param header the header of the fitted data set, with its class index set.
+     * @param port the port on the loopback interface, or 0 for any free port.
+     */
+    public ImputeServer(Imputer imputer, Instances header, int port) throws IOException {
+        Helper.checkNotNull("imputer", imputer);
+        Helper.checkNotNull("header", header);
+        Helper.checkNotNegative("port", port);
+        this.imputer = imputer;
+        this.header = new Instances(header, 0);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.handlers = Executors.newFixedThreadPool(DEFAULT_HANDLER_THREADS);
+        this.server.setExecutor(handlers);
+        this.server.createContext("/impute", this::handleImpute);
+        this.server.createContext("/stats", this::handleStats);
+        this.batcher = new Thread(this::runBatches, "impute-batcher");
+        this.batcher.setDaemon(true);
+    }
+
+    /**
+     * Sets how the requests are coalesced.
+     * @param maxBatchRows the number of rows at which a batch stops taking requests. A request is never split, so a
+     *                     larger request is a batch by itself.
+     * @param lingerMicros how long to wait for more requests after the first of a batch. 0 means only the requests
+     *                     already queued are coalesced.
+     */
+    public void setBatching(int maxBatchRows, long lingerMicros) {
+        Helper.checkPositive("maxBatchRows", maxBatchRows);
+        Helper.checkNotNegative("lingerMicros", lingerMicros);
+        this.maxBatchRows = maxBatchRows;
+        this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+    }
+
+    public void start() {
+        batcher.start();
+        server.start();
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    public LatencyHistogram latency() {
+        return latency;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        server.stop(0);
+        handlers.shutdownNow();
+        batcher.interrupt();
+        failQueued();
+    }
+
+    /**
+     * Fails the queued requests once the server is closed.
+     */
+    protected void failQueued() {
+        Request request;
+        while ((request = queue.poll()) != null)
+            request.result.completeExceptionally(new ImputeException("The server is closed."));
+    }
+
+    /**
+     * Imputes rows through the batching queue, as a request to the server does.
+     * @param rows the rows, with the header of the fitted data set.
+     * @return the imputed rows.
+     */
+    public Instances impute(Instances rows) throws ImputeException {
+        Helper.checkNotNull("rows", rows);
+        if (!running) {
+            throw new ImputeException("The server is closed.");
+        }
+        Request request = new Request(rows);
+        queue.add(request);
+        // The server may have been closed and drained since the check above, in which case nobody takes the request.
+        if (!running && queue.remove(request))
+            request.result.completeExceptionally(new ImputeException("The server is closed."));
+        try {
+            return request.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ImputeException("Interrupted while imputing rows.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ImputeException)
+                throw (ImputeException) e.getCause();
+            throw new ImputeException("Error occurs while imputing rows. Details: " + e.getCause().getMessage(),
+                    e.getCause());
+        }
+    }
+
+    /**
+     * Returns the counters and the latency percentiles of the server.
+     */
+    public String stats() {
+        long batches = numBatches.sum();
+        return String.format("requests=%d rows=%d batches=%d meanBatchRows=%.2f errors=%d%nlatency %s%n",
+                numRequests.sum(), numRows.sum(), batches, batches == 0 ? 0.0 : (double) numRows.sum() / batches,
+                numErrors.sum(), latency.summaryMicros());
+    }
+
+    protected void runBatches() {
+        List<Request> batch = new ArrayList<>();
+        while (running) {
+            try {
+                Request first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                batch.add(first);
+                int rows = first.rows.numInstances();
+                long deadline = System.nanoTime() + lingerNanos;
+                while (rows < maxBatchRows) {
+                    Request next = queue.peek();
+                    if (next == null) {
+                        long wait = deadline - System.nanoTime();
+                        next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+                        if (next == null)
+                            break;
+                    } else if (rows + next.rows.numInstances() > maxBatchRows) {
+                        break;
+                    } else {
+                        queue.poll();
+                    }
+                    batch.add(next);
+                    rows += next.rows.numInstances();
+                }
+                imputeBatch(batch, rows);
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                // Fails the requests left uncompleted by an interrupt or an unexpected error, and no-op otherwise.
+                for (Request request: batch)
+                    request.result.completeExceptionally(new ImputeException("The batch is abandoned."));
+                batch.clear();
+            }
+        }
+        failQueued();
+    }
+
+    /**
+     * Imputes the rows of a batch of requests in one transform and completes the requests. If the transform fails,
+     * the requests are imputed one by one, so that only those which fail on their own get the error.
+     */
+    protected void imputeBatch(List<Request> batch, int rows) {
+        Instances data = new Instances(header, rows);
+        for (Request request: batch)
+            data.addAll(request.rows);
+        Instances imputed;
+        try {
+            imputed = imputer.transform(data);
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                numErrors.increment();
+                batch.get(0).result.completeExceptionally(e);
+            } else {
+                // A bad row fails the whole transform, so every request is retried alone to fail only its own.
+                for (Request request: batch)
+                    imputeBatch(Collections.singletonList(request), request.rows.numInstances());
+            }
+            return;
+        }
+        numBatches.increment();
+        numRequests.add(batch.size());
+        numRows.add(rows);
+        int offset = 0;
+        for (Request request: batch) {
+            int n = request.rows.numInstances();
+            Instances result = new Instances(imputed, offset, n);
+            offset += n;
+            latency.record(System.nanoTime() - request.start);
+            request.result.complete(result);
+        }
+    }
+
+    protected void handleImpute(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "Expected POST.\n");
+                return;
+            }
+            Instances rows;
+            try {
+                rows = parseRows(readBody(exchange.getRequestBody()));
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, e.getMessage() + "\n");
+                return;
+            }
+            try {
+                respond(exchange, 200, formatRows(impute(rows)));
+            } catch (ImputeException e) {
+                respond(exchange, 500, e.getMessage() + "\n");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    protected void handleStats(HttpExchange exchange) throws IOException {
+        try {
+            respond(exchange, 200, stats());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Parses rows in the format of the protocol against the header.
+     * @throws IllegalArgumentException if a row does not match the header.
+     */
+    protected Instances parseRows(String body) throws IllegalArgumentException {
+        String[] lines = body.split("\r?\n");
+        Instances rows = new Instances(header, lines.length);
+        int numAttributes = header.numAttributes();
+        for (String line: lines) {
+            if (line.trim().isEmpty())
+                continue;
+            String[] fields = line.split(",", -1);
+            if (fields.length != numAttributes) {
+                throw new IllegalArgumentException("Expected " + numAttributes + " values, but got " +
+                        fields.length + " in row: " + line);
+            }
+            double[] values = new double[numAttributes];
+            for (int i=0; i<numAttributes; ++i) {
+                String field = fields[i].trim();
+                Attribute attribute = header.attribute(i);
+                if (field.isEmpty() || "?".equals(field)) {
+                    values[i] = Utils.missingValue();
+                } else if (attribute.isNominal()) {
+                    values[i] = attribute.indexOfValue(field);
+                    if (values[i] < 0) {
+                        throw new IllegalArgumentException("Unknown value " + field + " of attribute " +
+                                attribute.name());
+                    }
+                } else {
+                    try {
+                        values[i] = Double.parseDouble(field);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid value " + field + " of attribute " +
+                                attribute.name());
+                    }
+                }
+            }
+            rows.add(new DenseInstance(1.0, values));
+        }
+        return rows;
+    }
+
+    protected static String formatRows(Instances rows) {
+        StringBuilder sb = new StringBuilder();
+        for (Instance row: rows) {
+            for (int i=0; i<row.numAttributes(); ++i) {
+                if (i > 0)
+                    sb.append(',');
+                if (row.isMissing(i))
+                    sb.append('?');
+                else if (row.attribute(i).isNominal())
+                    sb.append(row.stringValue(i));
+                else
+                    sb.append(row.value(i));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    protected static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            out.write(buffer, 0, n);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    protected static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Fits an imputer on a data set and serves it until the process is killed.
+     * Usage: ImputeServer &lt;data file&gt; &lt;class index&gt; &lt;imputer class&gt; [port [max batch rows [linger micros]]]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: ImputeServer <data file> <class index> <imputer class> " +
+                    "[port [max batch rows [linger micros]]]");
+            return;
+        }
+        Helper.checkFileExists(args[0]);
+        int classIndex = Integer.parseInt(args[1]);
+        String imputerClass = args[2].contains(".") ? args[2] : "com.fatty.ml.imputer." + args[2];
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+        Instances data = ColumnarDataset.load(args[0]);
+        Helper.setDataSetClassIndex(data, classIndex);
+        Imputer imputer = (Imputer) Class.forName(imputerClass).getDeclaredConstructor().newInstance();
+        long start = System.currentTimeMillis();
+        imputer.fit(data, classIndex);
+        System.out.println("Fitted " + imputerClass + " on " + data.numInstances() + " rows in " +
+                (System.currentTimeMillis() - start) + " ms.");
+
+        ImputeServer server = new ImputeServer(imputer, data, port);
+        if (args.length > 4)
+            server.setBatching(Integer.parseInt(args[4]), args.length > 5 ? Long.parseLong(args[5]) : 0);
+        server.start();
+        System.out.println("Serving on http://127.0.0.1:" + server.port() + "/impute");
+    }
+}
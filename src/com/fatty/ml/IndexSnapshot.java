@@ -0,0 +1,230 @@
+package com.fatty.ml;
+
+import com.fatty.Helper;
+import weka.core.Instances;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A binary snapshot of a trained k-NN index: the header of the trained data, the packed feature matrix and the
+ * neighbour lists of the approximate k-NN graph, if any. The file starts with the magic number, the version and the
+ * serialized header, followed by the sizes and the raw little-endian arrays. It is loaded by memory-mapping the file,
+ * so a warm restart reads the arrays at disk speed instead of building the graph again. A matrix in a compact
+ * format is written as its decoded doubles.
+ */
+public class IndexSnapshot {
+    protected static int MAGIC = 0x484D4958; // "HMIX"
+    protected static int VERSION = 1;
+    protected static int MAP_WINDOW = 1 << 30;
+    protected static int WRITE_BUFFER = 1 << 20;
+
+    protected final Instances header;
+    protected final FeatureMatrix features;
+    // The number of neighbours of each node, or 0 if there is no graph.
+    protected final int k;
+    protected final int[] neighbors;
+    protected final double[] distances;
+
+    protected IndexSnapshot(Instances header, FeatureMatrix features, int k, int[] neighbors, double[] distances) {
+        this.header = header;
+        this.features = features;
+        this.k = k;
+        this.neighbors = neighbors;
+        this.distances = distances;
+    }
+
+    public Instances header() {
+        return header;
+    }
+
+    public FeatureMatrix features() {
+        return features;
+    }
+
+    public int k() {
+        return k;
+    }
+
+    /**
+     * Returns whether the snapshot was taken on the given trained data.
+     */
+    public boolean matches(Instances header, FeatureMatrix features) {
+        return this.header.equalHeaders(header) && this.header.classIndex() == header.classIndex()
+                && this.features.numRows() == features.numRows()
+                && this.features.numColumns() == features.numColumns()
+                && sameValues(this.features, features);
+    }
+
+    /**
+     * Compares the decoded values bit by bit, as {@link Arrays#equals(double[], double[])} does.
+     */
+    protected static boolean sameValues(FeatureMatrix a, FeatureMatrix b) {
+        if (a.hasValues() && b.hasValues())
+            return Arrays.equals(a.values(), b.values());
+        for (int offset=0, size=a.numRows()*a.numColumns(); offset<size; ++offset) {
+            if (Double.doubleToLongBits(a.get(offset)) != Double.doubleToLongBits(b.get(offset)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Restores the k-NN graph of the snapshot into an NN-Descent builder over the given columns.
+     */
+    public ParallelNNDescent graph(int[] columns) {
+        return graph(features, columns);
+    }
+
+    /**
+     * Restores the k-NN graph of the snapshot into an NN-Descent builder over the given columns of a matrix of the
+     * same values, e.g. the snapshot values in another storage format.
+     */
+    public ParallelNNDescent graph(FeatureMatrix features, int[] columns) {
+        Helper.checkIntEqual(this.features.numRows(), features.numRows());
+        ParallelNNDescent graph = new ParallelNNDescent(features, columns, k);
+        graph.restore(neighbors, distances);
+        return graph;
+    }
+
+    /**
+     * Writes a snapshot.
+     * @param file the file to write.
+     * @param header the trained data, of which only the header is written.
+     * @param features the packed trained data.
+     * @param graph the k-NN graph, which could be null.
+     */
+    public static void write(File file, Instances header, FeatureMatrix features, ParallelNNDescent graph)
+            throws IOException {
+        Helper.checkNotNull("file", file);
+        Helper.checkNotNull("header", header);
+        Helper.checkNotNull("features", features);
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(headerBytes)) {
+            out.writeObject(new Instances(header, 0));
+        }
+        int numRows = features.numRows();
+        int k = graph == null ? 0 : graph.k;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(headerBytes.size());
+            flush(channel, buffer);
+            writeFully(channel, ByteBuffer.wrap(headerBytes.toByteArray()));
+            buffer.putInt(numRows).putInt(features.numColumns()).putInt(k);
+            for (int offset=0, size=numRows*features.numColumns(); offset<size; ++offset) {
+                if (buffer.remaining() < 8) flush(channel, buffer);
+                buffer.putDouble(features.get(offset));
+            }
+            for (int row=0; row<numRows && k>0; ++row) {
+                for (int id: graph.neighbors(row)) {
+                    if (buffer.remaining() < 4) flush(channel, buffer);
+                    buffer.putInt(id);
+                }
+            }
+            for (int row=0; row<numRows && k>0; ++row) {
+                for (double d: graph.distances(row)) {
+                    if (buffer.remaining() < 8) flush(channel, buffer);
+                    buffer.putDouble(d);
+                }
+            }
+            flush(channel, buffer);
+        }
+    }
+
+    /**
+     * Reads a snapshot by memory-mapping the file.
+     * @throws IOException if the file could not be read or is not a snapshot of this version.
+     */
+    public static IndexSnapshot read(File file) throws IOException {
+        Helper.checkNotNull("file", file);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long position = 0;
+            ByteBuffer preamble = map(channel, position, 12);
+            if (preamble.getInt() != MAGIC) {
+                throw new IOException("The file " + file + " is not an index snapshot.");
+            }
+            int version = preamble.getInt();
+            if (version != VERSION) {
+                throw new IOException("Expected index snapshot version " + VERSION + ", but got " + version);
+            }
+            int headerLength = preamble.getInt();
+            position += 12;
+            byte[] headerBytes = new byte[headerLength];
+            map(channel, position, headerLength).get(headerBytes);
+            position += headerLength;
+            Instances header;
+            try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(headerBytes))) {
+                header = (Instances) in.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Error occurs while reading the header. Details: " + e.getMessage(), e);
+            }
+
+            ByteBuffer sizes = map(channel, position, 12);
+            int numRows = sizes.getInt(), numColumns = sizes.getInt(), k = sizes.getInt();
+            position += 12;
+            double[] values = new double[Math.multiplyExact(numRows, numColumns)];
+            position = readDoubles(channel, position, values);
+            int[] neighbors = null;
+            double[] distances = null;
+            if (k > 0) {
+                neighbors = new int[Math.multiplyExact(numRows, k)];
+                position = readInts(channel, position, neighbors);
+                distances = new double[neighbors.length];
+                position = readDoubles(channel, position, distances);
+            }
+            if (position != channel.size()) {
+                throw new IOException("The index snapshot " + file + " is corrupted.");
+            }
+            return new IndexSnapshot(header, new FeatureMatrix(numRows, numColumns, values), k, neighbors, distances);
+        }
+    }
+
+    protected static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        if (position + size > channel.size()) {
+            throw new IOException("Unexpected end of the index snapshot.");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    protected static long readDoubles(FileChannel channel, long position, double[] out) throws IOException {
+        for (int done=0; done<out.length; ) {
+            int count = Math.min(out.length - done, MAP_WINDOW / 8);
+            map(channel, position, 8L * count).asDoubleBuffer().get(out, done, count);
+            position += 8L * count;
+            done += count;
+        }
+        return position;
+    }
+
+    protected static long readInts(FileChannel channel, long position, int[] out) throws IOException {
+        for (int done=0; done<out.length; ) {
+            int count = Math.min(out.length - done, MAP_WINDOW / 4);
+            map(channel, position, 4L * count).asIntBuffer().get(out, done, count);
+            position += 4L * count;
+            done += count;
+        }
+        return position;
+    }
+
+    protected static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        writeFully(channel, buffer);
+        buffer.clear();
+    }
+
+    protected static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+}
@@ -0,0 +1,213 @@
+package com.fatty.ml;
+
+import com.fatty.BoundedMaxHeap;
+import com.fatty.Helper;
+
+import java.util.Arrays;
+
+/**
+ * An exact k-NN index over the rows of a feature matrix under the L1 distance. Each node keeps the bounding box of
+ * its rows on every column. A query only compares its cared columns, so the lower bound of a node is the L1 distance
+ * from the query to the box restricted to those columns, which stays valid whatever columns are masked out. Nodes are
+ * pruned only when the bound is strictly greater than the current k-th distance, so the result is identical to the
+ * brute-force search, ties included.
+ */
+public class KDTree {
+    protected static int DEFAULT_LEAF_SIZE = 32;
+
+    protected final FeatureMatrix features;
+    protected final int numColumns;
+    protected final int leafSize;
+    protected final int[] order;
+    // Node arrays, indexed by node id.
+    protected int[] start;
+    protected int[] end;
+    protected int[] left;
+    protected int[] right;
+    protected double[] lower;
+    protected double[] upper;
+    protected int numNodes;
+
+    public KDTree(FeatureMatrix features, int[] splitColumns) {
+        this(features, splitColumns, DEFAULT_LEAF_SIZE);
+    }
+
+    /**
+     * Builds the tree.
+     * @param features the rows to index, which must not have missing values on the split columns.
+     * @param splitColumns the columns that the nodes could be split on.
+     * @param leafSize the maximal number of rows of a leaf.
+     */
+    public KDTree(FeatureMatrix features, int[] splitColumns, int leafSize) {
+        Helper.checkNotNull("features", features);
+        Helper.checkNotNull("splitColumns", splitColumns);
+        Helper.checkPositive("leafSize", leafSize);
+        this.features = features;
+        this.numColumns = features.numColumns();
+        this.leafSize = leafSize;
+        int numRows = features.numRows();
+        this.order = new int[numRows];
+        for (int i=0; i<numRows; ++i)
+            order[i] = i;
+
+        int capacity = Math.max(1, 2 * ((numRows + leafSize - 1) / leafSize));
+        start = new int[capacity];
+        end = new int[capacity];
+        left = new int[capacity];
+        right = new int[capacity];
+        lower = new double[capacity * numColumns];
+        upper = new double[capacity * numColumns];
+        numNodes = 0;
+        if (numRows > 0)
+            build(0, numRows, splitColumns);
+    }
+
+    public int numNodes() {
+        return numNodes;
+    }
+
+    /**
+     * Searches the k nearest rows of a query.
+     * @param query the query values, indexed by column.
+     * @param caredIndices the columns to compare.
+     * @param heap the heap to collect the neighbours, whose capacity is k. It is not cleared before searching.
+     */
+    public void search(double[] query, int[] caredIndices, BoundedMaxHeap heap) {
+        if (numNodes > 0 && heap.capacity() > 0)
+            search(0, query, caredIndices, heap);
+    }
+
+    protected void search(int node, double[] query, int[] caredIndices, BoundedMaxHeap heap) {
+        if (left[node] < 0) {
+            for (int i=start[node]; i<end[node]; ++i) {
+                int row = order[i];
+                heap.offer(row, features.l1Distance(row, query, caredIndices));
+            }
+            return;
+        }
+
+        // Visit the nearer child first so that the farther one is more likely pruned.
+        int near = left[node], far = right[node];
+        double nearBound = lowerBound(near, query, caredIndices);
+        double farBound = lowerBound(far, query, caredIndices);
+        if (farBound < nearBound) {
+            int t = near; near = far; far = t;
+            double b = nearBound; nearBound = farBound; farBound = b;
+        }
+        if (!(nearBound > heap.threshold()))
+            search(near, query, caredIndices, heap);
+        if (!(farBound > heap.threshold()))
+            search(far, query, caredIndices, heap);
+    }
+
+    /**
+     * Calculates the L1 distance from a query to the bounding box of a node on the cared columns. The columns are
+     * summed in the same order as {@link FeatureMatrix#l1Distance(int, double[], int[])}, so the bound never exceeds
+     * the computed distance of any row in the node.
+     */
+    protected double lowerBound(int node, double[] query, int[] caredIndices) {
+        int offset = node * numColumns;
+        double d = 0.0;
+        for (int i: caredIndices) {
+            double q = query[i];
+            double lo = lower[offset + i], hi = upper[offset + i];
+            if (q < lo)
+                d += lo - q;
+            else if (q > hi)
+                d += q - hi;
+        }
+        return d;
+    }
+
+    protected int build(int from, int to, int[] splitColumns) {
+        int node = numNodes++;
+        ensureCapacity(numNodes);
+        start[node] = from;
+        end[node] = to;
+        left[node] = -1;
+        right[node] = -1;
+
+        // Calculate the bounding box.
+        int offset = node * numColumns;
+        for (int c=0; c<numColumns; ++c) {
+            lower[offset + c] = Double.POSITIVE_INFINITY;
+            upper[offset + c] = Double.NEGATIVE_INFINITY;
+        }
+        for (int i=from; i<to; ++i) {
+            int rowOffset = features.offset(order[i]);
+            for (int c=0; c<numColumns; ++c) {
+                double v = features.get(rowOffset + c);
+                if (v < lower[offset + c]) lower[offset + c] = v;
+                if (v > upper[offset + c]) upper[offset + c] = v;
+            }
+        }
+        if (to - from <= leafSize)
+            return node;
+
+        // Split on the column of the widest spread at its median.
+        int splitColumn = -1;
+        double spread = 0.0;
+        for (int c: splitColumns) {
+            double s = upper[offset + c] - lower[offset + c];
+            if (s > spread) {
+                spread = s;
+                splitColumn = c;
+            }
+        }
+        if (splitColumn < 0)
+            return node; // All the rows are identical.
+        int mid = (from + to) >>> 1;
+        select(from, to - 1, mid, splitColumn);
+
+        int l = build(from, mid, splitColumns);
+        int r = build(mid, to, splitColumns);
+        left[node] = l;
+        right[node] = r;
+        return node;
+    }
+
+    /**
+     * Partially sorts order[from..to] so that the row at position nth has the nth least value on the column.
+     */
+    protected void select(int from, int to, int nth, int column) {
+        while (to > from) {
+            // Median-of-three pivot to avoid the quadratic case on sorted data.
+            int mid = (from + to) >>> 1;
+            double a = value(from, column), b = value(mid, column), c = value(to, column);
+            int pivotPos = (a < b) ? ((b < c) ? mid : ((a < c) ? to : from)) : ((a < c) ? from : ((b < c) ? to : mid));
+            double pivot = value(pivotPos, column);
+            int i = from, j = to;
+            while (i <= j) {
+                while (value(i, column) < pivot) ++i;
+                while (value(j, column) > pivot) --j;
+                if (i <= j) {
+                    int t = order[i]; order[i] = order[j]; order[j] = t;
+                    ++i;
+                    --j;
+                }
+            }
+            if (nth <= j)
+                to = j;
+            else if (nth >= i)
+                from = i;
+            else
+                return;
+        }
+    }
+
+    protected double value(int position, int column) {
+        return features.value(order[position], column);
+    }
+
+    protected void ensureCapacity(int nodes) {
+        if (nodes <= start.length)
+            return;
+        int capacity = Math.max(nodes, start.length * 2);
+        start = Arrays.copyOf(start, capacity);
+        end = Arrays.copyOf(end, capacity);
+        left = Arrays.copyOf(left, capacity);
+        right = Arrays.copyOf(right, capacity);
+        lower = Arrays.copyOf(lower, capacity * numColumns);
+        upper = Arrays.copyOf(upper, capacity * numColumns);
+    }
+}
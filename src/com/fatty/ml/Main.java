@@ -2,9 +2,7 @@ package com.fatty.ml;
 
 import com.fatty.Helper;
 import com.fatty.ml.imputer.*;
-import com.fatty.ml.misser.KangMisser;
 import com.fatty.ml.misser.MissException;
-import com.fatty.ml.misser.Misser;
 import com.fatty.ml.unimputed.*;
 import weka.classifiers.Classifier;
 import weka.classifiers.Evaluation;
@@ -154,7 +152,6 @@ public class Main {
             //original = normalize(nominalToNumeric(addNoiseColumns(original, numInterruptColumns, classIndex)));
 
             // Define the enumerations.
-            Misser misser = new KangMisser(0.0, 0.5);
             Class<?>[] classifiers = null;
             if (original.classAttribute().isNominal())
                 classifiers = new Class[] {UnimputedSMO.class, IBk.class, UnimputedDecisionTable.class, UnimputedJ48.class};
@@ -180,35 +177,14 @@ public class Main {
             missingRatios = new double[] {0.0, 0.05, 0.1, 0.2, 0.3, 0.4, 0.5};
             //missingRatios = new double[] {0.5};
             int missRepeat = 30;
-            double[][][] table = new double[classifiers.length][imputers.length][missingRatios.length];
-
-            // Calculate the whole table here.
-            for (int rpt=0; rpt<missRepeat; ++rpt) {
-                //System.out.println(dataSetName + ": round " + rpt + "/" + missRepeat + " starts.");
-                for (int k = 0; k < missingRatios.length; ++k) {
-                    Instances missed = misser.miss(original, missingRatios[k], classIndex);
-
-                    for (int j = 0; j < imputers.length; ++j) {
-                        // Check the missing data.
-                        //System.out.println("Missing ratio before imputed: " + checkMissingRatio(missed));
-
-                        Instances imputed;
-                        if (imputers[j] == null) { // Complete dataset.
-                            imputed = new Instances(original);
-                        } else { // Imputed dataset.
-                            Imputer imputer = (Imputer) imputers[j].newInstance();
-                            imputed = imputer.impute(missed, classIndex);
-                        }
-                        //System.out.println("Missing ratio after imputed: " + checkMissingRatio(imputed));
-
-                        for (int i=0; i < classifiers.length; ++i) {
-                            Classifier classifier = (Classifier) classifiers[i].newInstance();
-                            table[i][j][k] += evaluateDataSet(new Instances(imputed), classifier);
-                        }
-                    }
-                }
-                //System.out.println(dataSetName + ": round " + rpt + "/" + missRepeat + " ends.");
-            }
+
+            // Calculate the whole table here, on all the cores by default.
+            ExperimentGrid grid = new ExperimentGrid(dataSetName, original, classIndex, classifiers, imputers,
+                    missingRatios, missRepeat);
+            grid.setMissRange(0.0, 0.5);
+            grid.setNumThreads(Integer.getInteger("handlemissing.threads", Runtime.getRuntime().availableProcessors()));
+            grid.setSeed(Long.getLong("handlemissing.seed", ExperimentGrid.DEFAULT_SEED));
+            double[][][] table = grid.run();
 
             // Display the results.
             System.out.println("===============> Begins of " + dataSetName + " <===============");
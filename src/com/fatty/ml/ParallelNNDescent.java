@@ -0,0 +1,474 @@
+package com.fatty.ml;
+
+import com.fatty.BoundedMaxHeap;
+import com.fatty.Helper;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Builds an approximate k-NN graph over the rows of a feature matrix with the NN-Descent algorithm under the L2
+ * distance. The neighbour lists are primitive arrays indexed by row, and the local joins of the nodes run in parallel
+ * on a fork-join pool, each neighbour list being read and updated under the lock of its id array. The random sampling
+ * is seeded per node and per iteration, so a serial build is fully reproducible. A parallel build is not, as the lists
+ * updated concurrently keep the neighbours in the order the joins reach them.
+ *
+ * Rows appended to the matrix could be added to a computed graph with {@link #add(FeatureMatrix, int)}. Each new row
+ * finds its neighbours by a best-first search on the current graph and is then offered to the lists of those
+ * neighbours, so the cost is proportional to the number of the added rows rather than to the size of the graph.
+ */
+public class ParallelNNDescent {
+    protected static double DEFAULT_DELTA = 0.1;
+    protected static double DEFAULT_RHO = 0.2;
+    protected static int DEFAULT_MAX_ITERATIONS = 10;
+    protected static long DEFAULT_SEED = 20160912L;
+    protected static int SEARCH_ENTRIES = 8;
+
+    protected FeatureMatrix features;
+    protected final int[] columns;
+    protected final int k;
+    protected double delta = DEFAULT_DELTA;
+    protected double rho = DEFAULT_RHO;
+    protected int maxIterations = DEFAULT_MAX_ITERATIONS;
+    protected long seed = DEFAULT_SEED;
+    protected int iterations;
+    protected int numNodes;
+
+    // The neighbour lists of k entries each, unsorted.
+    protected int[][] ids;
+    protected double[][] distances;
+    protected boolean[][] isNew;
+    // Whether the list of a node has changed during the last computation.
+    protected boolean[] updated;
+
+    /**
+     * @param features the rows to link.
+     * @param columns the columns to compare.
+     * @param k the number of neighbours of each node, which must be less than the number of rows.
+     */
+    public ParallelNNDescent(FeatureMatrix features, int[] columns, int k) {
+        Helper.checkNotNull("features", features);
+        Helper.checkNotNull("columns", columns);
+        Helper.checkPositive("k", k);
+        if (k >= features.numRows()) {
+            throw new IllegalArgumentException("Expected k to be less than the number of rows " + features.numRows()
+                    + ", but got " + k);
+        }
+        this.features = features;
+        this.columns = columns.clone();
+        this.k = k;
+    }
+
+    /**
+     * Sets the early termination coefficient: the iterations stop once fewer than delta*N*k updates are made.
+     */
+    public void setDelta(double delta) {
+        Helper.checkNotNegative("delta", delta);
+        this.delta = delta;
+    }
+
+    /**
+     * Sets the sampling coefficient: at most rho*k new neighbours of each node join per iteration.
+     */
+    public void setRho(double rho) {
+        Helper.checkPositive("rho", rho);
+        this.rho = rho;
+    }
+
+    public void setMaxIterations(int maxIterations) {
+        Helper.checkPositive("maxIterations", maxIterations);
+        this.maxIterations = maxIterations;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public int getIterations() {
+        return iterations;
+    }
+
+    public int numNodes() {
+        return numNodes;
+    }
+
+    /**
+     * Returns whether the neighbour list of a node has changed during the last call of {@link #compute(int)} or
+     * {@link #add(FeatureMatrix, int)}.
+     */
+    public boolean isUpdated(int node) {
+        return updated[node];
+    }
+
+    /**
+     * Returns the neighbour ids of a node, in no particular order.
+     */
+    public int[] neighbors(int node) {
+        return ids[node];
+    }
+
+    /**
+     * Returns the L2 distances to the neighbours of a node, in the order of {@link #neighbors(int)}.
+     */
+    public double[] distances(int node) {
+        return distances[node];
+    }
+
+    /**
+     * Computes the graph.
+     * @param numThreads the number of threads to join the nodes.
+     */
+    public void compute(int numThreads) throws InterruptedException {
+        Helper.checkPositive("numThreads", numThreads);
+        int n = features.numRows();
+        ids = new int[n][];
+        distances = new double[n][];
+        isNew = new boolean[n][];
+        updated = new boolean[n];
+        ForkJoinPool pool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+        try {
+            descend(pool, n);
+            numNodes = n;
+        } finally {
+            shutdown(pool);
+        }
+    }
+
+    /**
+     * Adds the rows appended to the matrix since the last computation into the graph.
+     * @param features the grown matrix, whose leading rows must be the ones of the current matrix.
+     * @param numThreads the number of threads to insert the rows.
+     */
+    public void add(FeatureMatrix features, int numThreads) throws InterruptedException {
+        Helper.checkNotNull("features", features);
+        Helper.checkPositive("numThreads", numThreads);
+        if (ids == null) {
+            throw new IllegalStateException("The graph is not computed yet.");
+        }
+        Helper.checkIntEqual(this.features.numColumns(), features.numColumns());
+        if (features.numRows() < numNodes) {
+            throw new IllegalArgumentException("Expected at least " + numNodes + " rows, but got "
+                    + features.numRows());
+        }
+        this.features = features;
+        int first = numNodes, n = features.numRows();
+        ids = Arrays.copyOf(ids, n);
+        distances = Arrays.copyOf(distances, n);
+        isNew = Arrays.copyOf(isNew, n);
+        updated = new boolean[n];
+        ThreadLocal<int[]> visited = ThreadLocal.withInitial(() -> new int[n]);
+        ForkJoinPool pool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+        try {
+            forEach(pool, first, n, v -> insert(v, first, visited.get()));
+            numNodes = n;
+        } finally {
+            shutdown(pool);
+        }
+    }
+
+    /**
+     * Restores a computed graph.
+     * @param neighbors the neighbour ids of all the nodes, k per node.
+     * @param distances the distances to the neighbours, in the same order.
+     */
+    public void restore(int[] neighbors, double[] distances) {
+        int n = features.numRows();
+        Helper.checkIntEqual(n * k, neighbors.length);
+        Helper.checkIntEqual(n * k, distances.length);
+        ids = new int[n][];
+        this.distances = new double[n][];
+        isNew = new boolean[n][];
+        updated = new boolean[n];
+        for (int v=0; v<n; ++v) {
+            ids[v] = Arrays.copyOfRange(neighbors, v * k, (v + 1) * k);
+            this.distances[v] = Arrays.copyOfRange(distances, v * k, (v + 1) * k);
+            isNew[v] = new boolean[k];
+            updated[v] = true;
+        }
+        numNodes = n;
+    }
+
+    protected static void shutdown(ForkJoinPool pool) throws InterruptedException {
+        if (pool != null) {
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Inserts a new node: searches its nearest nodes on the graph, then offers it to the lists of them.
+     * @param v the new node.
+     * @param numEntries the number of nodes to start the search from, i.e. the nodes of the previous graph.
+     * @param visited the visited marks of the calling thread, which hold v+1 for the nodes visited by v.
+     */
+    protected void insert(int v, int numEntries, int[] visited) {
+        int mark = v + 1;
+        int ef = 2 * k;
+        BoundedMaxHeap results = new BoundedMaxHeap(ef);
+        HNSWIndex.MinHeap candidates = new HNSWIndex.MinHeap(ef);
+        Random r = new Random(seed + v);
+        for (int i=0; i<SEARCH_ENTRIES; ++i) {
+            int entry = r.nextInt(numEntries);
+            if (visited[entry] != mark) {
+                visited[entry] = mark;
+                double d = distance(v, entry);
+                candidates.push(entry, d);
+                results.offer(entry, d);
+            }
+        }
+        int[] neighbors = new int[k];
+        while (candidates.size() > 0) {
+            if (candidates.peekValue() > results.threshold())
+                break;
+            int current = candidates.pop();
+            int[] own = ids[current];
+            if (own == null)
+                continue; // Being inserted by another thread.
+            synchronized (own) {
+                System.arraycopy(own, 0, neighbors, 0, k);
+            }
+            for (int u: neighbors) {
+                if (visited[u] != mark) {
+                    visited[u] = mark;
+                    double d = distance(v, u);
+                    if (!(d > results.threshold())) {
+                        candidates.push(u, d);
+                        results.offer(u, d);
+                    }
+                }
+            }
+        }
+
+        int found = Math.min(results.size(), k);
+        double[] sortedDistances = new double[results.size()];
+        int[] sorted = results.drainSortedIndices(sortedDistances);
+        int[] own = Arrays.copyOf(sorted, k);
+        double[] dist = Arrays.copyOf(sortedDistances, k);
+        // A search stuck in a small component finds fewer than k nodes. The list is filled up with distinct random
+        // nodes of the previous graph at their real distances, which the later joins could replace.
+        for (int filled=found; filled<k; ) {
+            int u = r.nextInt(numEntries);
+            if (!contains(own, filled, u)) {
+                own[filled] = u;
+                dist[filled] = distance(v, u);
+                ++filled;
+            }
+        }
+        boolean[] flags = new boolean[k];
+        Arrays.fill(flags, true);
+        // The list is published under its own lock. A thread which sees ids[v] locks it before reading the distances
+        // and the flags, so it sees all three.
+        synchronized (own) {
+            distances[v] = dist;
+            isNew[v] = flags;
+            ids[v] = own;
+            updated[v] = true;
+        }
+        // Only the nodes found by the search take v as a neighbour.
+        for (int i=0; i<found; ++i)
+            update(own[i], v, dist[i]);
+    }
+
+    /**
+     * Initializes the nodes with random neighbours, then iterates the local joins.
+     */
+    protected void descend(ForkJoinPool pool, int n) {
+        int sampleSize = Math.max(1, (int) Math.round(rho * k));
+
+        // Random initialization.
+        forEach(pool, 0, n, v -> {
+            Random r = new Random(seed + v);
+            int[] own = new int[k];
+            double[] dist = new double[k];
+            boolean[] flags = new boolean[k];
+            int filled = 0;
+            while (filled < k) {
+                int u = r.nextInt(n);
+                if (u != v && !contains(own, filled, u)) {
+                    own[filled] = u;
+                    dist[filled] = distance(v, u);
+                    flags[filled] = true;
+                    ++filled;
+                }
+            }
+            distances[v] = dist;
+            isNew[v] = flags;
+            ids[v] = own;
+            updated[v] = true;
+        });
+
+        int[][] oldLists = new int[n][];
+        int[][] newLists = new int[n][];
+        AtomicLong updates = new AtomicLong();
+        for (iterations=0; iterations<maxIterations; ++iterations) {
+            final int iteration = iterations;
+
+            // Pick the old neighbours and sample the new ones, which are then marked old.
+            forEach(pool, 0, n, v -> {
+                synchronized (ids[v]) {
+                    int[] own = ids[v];
+                    boolean[] flags = isNew[v];
+                    int numOld = 0, numNew = 0;
+                    for (int i=0; i<k; ++i) {
+                        if (flags[i]) ++numNew;
+                        else ++numOld;
+                    }
+                    int[] olds = new int[numOld];
+                    int[] news = new int[Math.min(numNew, sampleSize)];
+                    Random r = new Random(seed + 31L * iteration + 1000003L * v);
+                    int o = 0, picked = 0, seen = 0;
+                    for (int i=0; i<k; ++i) {
+                        if (!flags[i]) {
+                            olds[o++] = own[i];
+                        } else {
+                            // Selection sampling keeps exactly min(numNew, sampleSize) items.
+                            if (r.nextInt(numNew - seen) < news.length - picked) {
+                                news[picked++] = own[i];
+                                flags[i] = false;
+                            }
+                            ++seen;
+                        }
+                    }
+                    oldLists[v] = olds;
+                    newLists[v] = news;
+                }
+            });
+
+            // Add the sampled reverse neighbours.
+            int[][] oldReverse = reverse(oldLists, n);
+            int[][] newReverse = reverse(newLists, n);
+            forEach(pool, 0, n, v -> {
+                Random r = new Random(seed - 31L * iteration - 1000003L * v);
+                oldLists[v] = union(oldLists[v], sample(oldReverse[v], sampleSize, r));
+                newLists[v] = union(newLists[v], sample(newReverse[v], sampleSize, r));
+            });
+
+            // Local joins.
+            updates.set(0);
+            forEach(pool, 0, n, v -> {
+                int c = 0;
+                int[] news = newLists[v];
+                int[] olds = oldLists[v];
+                for (int i=0; i<news.length; ++i) {
+                    int u1 = news[i];
+                    for (int j=i+1; j<news.length; ++j) {
+                        int u2 = news[j];
+                        double d = distance(u1, u2);
+                        c += update(u1, u2, d) + update(u2, u1, d);
+                    }
+                    for (int u2: olds) {
+                        if (u1 != u2) {
+                            double d = distance(u1, u2);
+                            c += update(u1, u2, d) + update(u2, u1, d);
+                        }
+                    }
+                }
+                if (c > 0)
+                    updates.addAndGet(c);
+            });
+            if (updates.get() <= delta * n * k) {
+                ++iterations;
+                break;
+            }
+        }
+    }
+
+    /**
+     * Tries to insert a neighbour into the list of a node.
+     * @return 1 if the list is updated, 0 otherwise.
+     */
+    protected int update(int node, int neighbor, double d) {
+        int[] own = ids[node];
+        synchronized (own) {
+            double[] dist = distances[node];
+            int worst = 0;
+            for (int i=0; i<k; ++i) {
+                if (own[i] == neighbor)
+                    return 0;
+                if (dist[i] > dist[worst])
+                    worst = i;
+            }
+            if (!(d < dist[worst]))
+                return 0;
+            own[worst] = neighbor;
+            dist[worst] = d;
+            isNew[node][worst] = true;
+            updated[node] = true;
+            return 1;
+        }
+    }
+
+    protected double distance(int a, int b) {
+        return Math.sqrt(features.squaredL2Distance(a, b, columns));
+    }
+
+    protected static boolean contains(int[] array, int length, int value) {
+        for (int i=0; i<length; ++i) {
+            if (array[i] == value)
+                return true;
+        }
+        return false;
+    }
+
+    protected static int[][] reverse(int[][] lists, int n) {
+        int[] degrees = new int[n];
+        for (int[] list: lists) {
+            for (int u: list)
+                ++degrees[u];
+        }
+        int[][] reversed = new int[n][];
+        for (int u=0; u<n; ++u)
+            reversed[u] = new int[degrees[u]];
+        int[] filled = new int[n];
+        for (int v=0; v<n; ++v) {
+            for (int u: lists[v])
+                reversed[u][filled[u]++] = v;
+        }
+        return reversed;
+    }
+
+    protected static int[] sample(int[] list, int size, Random r) {
+        if (list.length <= size)
+            return list;
+        int[] copy = list.clone();
+        for (int i=0; i<size; ++i) {
+            int j = i + r.nextInt(copy.length - i);
+            int t = copy[i]; copy[i] = copy[j]; copy[j] = t;
+        }
+        int[] sampled = new int[size];
+        System.arraycopy(copy, 0, sampled, 0, size);
+        return sampled;
+    }
+
+    protected static int[] union(int[] a, int[] b) {
+        int[] merged = new int[a.length + b.length];
+        System.arraycopy(a, 0, merged, 0, a.length);
+        int length = a.length;
+        for (int x: b) {
+            if (!contains(merged, length, x))
+                merged[length++] = x;
+        }
+        if (length == merged.length)
+            return merged;
+        int[] trimmed = new int[length];
+        System.arraycopy(merged, 0, trimmed, 0, length);
+        return trimmed;
+    }
+
+    protected interface NodeAction {
+        void apply(int node);
+    }
+
+    protected static void forEach(ForkJoinPool pool, int from, int to, NodeAction action) {
+        if (pool == null) {
+            for (int v=from; v<to; ++v)
+                action.apply(v);
+        } else {
+            pool.submit(() -> IntStream.range(from, to).parallel().forEach(action::apply)).join();
+        }
+    }
+}
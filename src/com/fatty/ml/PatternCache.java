@@ -0,0 +1,219 @@
+package com.fatty.ml;
+
+import com.fatty.Helper;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of the trained data projected onto the complete attributes of the missing patterns.
+ * In real data a handful of missing patterns cover most of the rows, so queries of the same pattern share one
+ * projection instead of gathering the cared columns again and again. A projection costs a pass over all the trained
+ * rows, so a pattern is projected only once it has been seen on more than one row; the rows of the patterns seen once,
+ * which are most of them when the values are missing at random, gather their columns instead. The cache is bounded by
+ * a memory budget in bytes.
+ * It is thread-safe: a projection is built outside the cache lock, once, by the first thread asking for its pattern,
+ * while the threads of other patterns carry on.
+ *
+ * No search structure is kept per pattern. The k-NN indexes of {@link UniformLLR} are built over the whole rows, and
+ * an index per pattern would cost a build over all the trained rows for every new pattern, so the queries of a
+ * pattern scan its packed projection instead.
+ */
+public class PatternCache {
+    // The number of patterns seen once that are remembered, least recently seen first out.
+    protected static int MAX_SEEN_PATTERNS = 4096;
+
+    protected final FeatureMatrix features;
+    protected final long memoryBudget;
+    protected final LinkedHashMap<BitSet, Entry> projections;
+    protected final LinkedHashMap<BitSet, Boolean> seen;
+    protected long usedBytes;
+    protected long hits;
+    protected long misses;
+
+    public PatternCache(FeatureMatrix features, long memoryBudget) {
+        Helper.checkNotNull("features", features);
+        Helper.checkNotNegative("memoryBudget", memoryBudget);
+        this.features = features;
+        this.memoryBudget = memoryBudget;
+        this.projections = new LinkedHashMap<>(16, 0.75f, true);
+        this.seen = new LinkedHashMap<BitSet, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<BitSet, Boolean> eldest) {
+                return size() > MAX_SEEN_PATTERNS;
+            }
+        };
+        this.usedBytes = 0;
+    }
+
+    /**
+     * Gets the projection of a missing pattern, building it if the pattern has been seen on more than one row.
+     * @param key the set of the cared columns.
+     * @param caredIndices the cared columns in ascending order.
+     * @param rows the number of rows of the pattern about to be imputed.
+     * @return the projection, or null if the pattern is new or the projection does not fit into the memory budget or
+     * into one array.
+     */
+    public Projection get(BitSet key, int[] caredIndices, int rows) {
+        Entry entry;
+        synchronized (this) {
+            entry = projections.get(key);
+            if (entry != null) {
+                ++hits;
+            } else {
+                ++misses;
+                if (rows < 2 && seen.put(key, Boolean.TRUE) == null) {
+                    return null;
+                }
+                long bytes = Projection.estimateBytes(features.numRows(), caredIndices.length);
+                // The projected rows are packed in one array, which cannot hold more than Integer.MAX_VALUE values.
+                if (bytes > memoryBudget || (long) features.numRows() * caredIndices.length > Integer.MAX_VALUE) {
+                    return null;
+                }
+                seen.remove(key);
+
+                // Evict the least recently used projections. An evicted projection still being built is finished by
+                // its builder, but no longer counted.
+                Iterator<Map.Entry<BitSet, Entry>> itr = projections.entrySet().iterator();
+                while (usedBytes + bytes > memoryBudget && itr.hasNext()) {
+                    usedBytes -= itr.next().getValue().bytes;
+                    itr.remove();
+                }
+                entry = new Entry(caredIndices, bytes);
+                projections.put(key, entry);
+                usedBytes += bytes;
+            }
+        }
+        return entry.get(features);
+    }
+
+    public synchronized int size() {
+        return projections.size();
+    }
+
+    public synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        projections.clear();
+        seen.clear();
+        usedBytes = 0;
+    }
+
+    /**
+     * A slot of the cache, whose projection is built by the first caller. The callers of the same pattern wait on
+     * the slot only.
+     */
+    protected static class Entry {
+        protected final int[] caredIndices;
+        protected final long bytes;
+        protected volatile Projection projection;
+
+        protected Entry(int[] caredIndices, long bytes) {
+            this.caredIndices = caredIndices.clone();
+            this.bytes = bytes;
+        }
+
+        protected Projection get(FeatureMatrix features) {
+            Projection p = projection;
+            if (p == null) {
+                synchronized (this) {
+                    p = projection;
+                    if (p == null)
+                        projection = p = new Projection(features, caredIndices);
+                }
+            }
+            return p;
+        }
+    }
+
+    /**
+     * The trained data projected onto the cared columns of a missing pattern, packed row by row, together with the
+     * squared L2 norms of the projected rows. A projection is immutable once built.
+     */
+    public static class Projection {
+        protected final int[] caredIndices;
+        protected final int numRows;
+        protected final int dimension;
+        protected final double[] rows;
+        protected final double[] squaredNorms;
+        protected final long bytes;
+
+        protected Projection(FeatureMatrix features, int[] caredIndices) {
+            this.caredIndices = caredIndices.clone();
+            this.numRows = features.numRows();
+            this.dimension = caredIndices.length;
+            this.rows = new double[numRows * dimension];
+            this.squaredNorms = new double[numRows];
+            for (int row=0, pos=0; row<numRows; ++row) {
+                features.gather(row, caredIndices, rows, pos);
+                // The same product as the Gram matrix of gathered rows, so a projection does not change the result.
+                squaredNorms[row] = DenseMatrix.dot(rows, pos, rows, pos, dimension);
+                pos += dimension;
+            }
+            this.bytes = estimateBytes(numRows, dimension);
+        }
+
+        protected static long estimateBytes(int numRows, int dimension) {
+            return 8L * numRows * (dimension + 1) + 4L * dimension;
+        }
+
+        public int[] caredIndices() {
+            return caredIndices;
+        }
+
+        public int numRows() {
+            return numRows;
+        }
+
+        public int dimension() {
+            return dimension;
+        }
+
+        /**
+         * Returns the packed projected rows. Row r starts at offset r*dimension.
+         */
+        public double[] rows() {
+            return rows;
+        }
+
+        public double[] squaredNorms() {
+            return squaredNorms;
+        }
+
+        /**
+         * Projects a query onto the cared columns.
+         */
+        public double[] project(double[] query, double[] projected) {
+            if (projected == null || projected.length != dimension)
+                projected = new double[dimension];
+            for (int i=0; i<dimension; ++i)
+                projected[i] = query[caredIndices[i]];
+            return projected;
+        }
+
+        /**
+         * Calculates the L1 distance between a projected row and a projected query. The columns are summed in the
+         * same order as {@link FeatureMatrix#l1Distance(int, double[], int[])}, so the result is identical.
+         */
+        public double l1Distance(int row, double[] projectedQuery) {
+            int offset = row * dimension;
+            double d = 0.0;
+            for (int i=0; i<dimension; ++i) {
+                d += Math.abs(rows[offset + i] - projectedQuery[i]);
+            }
+            return d;
+        }
+    }
+}
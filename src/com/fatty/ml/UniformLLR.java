@@ -5,6 +5,7 @@ import cern.colt.matrix.DoubleFactory2D;
 import cern.colt.matrix.DoubleMatrix1D;
 import cern.colt.matrix.DoubleMatrix2D;
 import cern.colt.matrix.linalg.Algebra;
+import com.fatty.BoundedMaxHeap;
 import com.fatty.Helper;
 import com.joptimizer.functions.ConvexMultivariateRealFunction;
 import com.joptimizer.functions.LinearMultivariateRealFunction;
@@ -12,14 +13,22 @@ import com.joptimizer.functions.PDQuadraticMultivariateRealFunction;
 import com.joptimizer.optimizers.JOptimizer;
 import com.joptimizer.optimizers.OptimizationRequest;
 import info.debatty.java.graphs.*;
-import info.debatty.java.graphs.build.NNDescent;
 import weka.classifiers.AbstractClassifier;
 import weka.core.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by caowq on 2016/9/12.
@@ -28,9 +37,24 @@ public class UniformLLR extends AbstractClassifier {
     protected static int MIN_INSTANCES_TO_TRAIN = 3;
     protected static int MIN_ATTRIBUTE_TO_RECONSTRUCT = 2;
     protected static int DEFAULT_K = 50;
+    protected static int PARALLEL_GRAIN = 64;
+    protected static int DISTANCE_BLOCK = 1024;
+    protected static long DEFAULT_PATTERN_CACHE_BYTES = 256L << 20;
+    protected static long SMO_2D_SEED = 20160912L;
+    // The share of a warm start spread uniformly over the neighbours.
+    protected static double WARM_START_MIX = 0.1;
+    protected static double DEFAULT_SIMPLEX_TOLERANCE = 1e-6;
+    protected static int DEFAULT_SIMPLEX_MAX_ITERATIONS = 200;
+    protected static double SIMPLEX_RIDGE = 1e-10;
     protected Instances completeData;
+    protected FeatureMatrix features;
+    protected PatternCache patternCache;
     protected int initK;
-    protected Graph<Instance> graph;
+    protected Graph<GraphPoint> graph;
+    protected ArrayList<Node<GraphPoint>> graphNodes;
+    protected ParallelNNDescent nnDescent;
+    protected KDTree tree;
+    protected HNSWIndex hnsw;
     protected int classIndex = -1;
 
     public void setSpeedup(double speedup) {
@@ -39,6 +63,220 @@ public class UniformLLR extends AbstractClassifier {
 
     protected double speedup = 4.0;
 
+    /**
+     * Sets the number of threads used by {@link #imputeAll(Instances)}, and by the index builds if
+     * {@link #setParallelIndexBuild(boolean)} is on. 1 means imputing serially.
+     */
+    public void setNumThreads(int numThreads) {
+        Helper.checkPositive("numThreads", numThreads);
+        this.numThreads = numThreads;
+    }
+
+    protected int numThreads = 1;
+
+    /**
+     * Switches the NN-Descent graph and the HNSW index between building on {@link #setNumThreads(int)} threads and
+     * building serially. A parallel build is faster, but the graph then depends on the thread scheduling, so the
+     * neighbours found and the imputed values differ slightly from run to run. A serial build is reproducible. The
+     * default is false.
+     */
+    public void setParallelIndexBuild(boolean parallelIndexBuild) {
+        this.parallelIndexBuild = parallelIndexBuild;
+    }
+
+    protected boolean parallelIndexBuild = false;
+
+    protected int indexThreads() {
+        return parallelIndexBuild ? numThreads : 1;
+    }
+
+    /**
+     * Switches the brute-force k-NN search between the vectorized column-major distance kernel and the scalar
+     * reference kernel. Both give identical distances. The vectorized kernel keeps a column-major copy of the trained
+     * features at double precision next to the rows, so it is off unless the system property
+     * "handlemissing.vectorizedDistance" is true.
+     */
+    public void setVectorizedDistance(boolean vectorizedDistance) {
+        this.vectorizedDistance = vectorizedDistance;
+    }
+
+    protected boolean vectorizedDistance =
+            Boolean.parseBoolean(System.getProperty("handlemissing.vectorizedDistance", "false"));
+
+    /**
+     * Sets the memory budget in bytes of the missing pattern projection cache. 0 disables the cache.
+     * Projections are kept at double precision, i.e. 8 bytes per value, whatever the storage of the trained features,
+     * so with Float32 or Quantized16 storage a projection may take two to four times the bytes of the rows it copies.
+     * It takes effect on the next {@link #buildClassifier(Instances)}.
+     */
+    public void setPatternCacheBytes(long patternCacheBytes) {
+        Helper.checkNotNegative("patternCacheBytes", patternCacheBytes);
+        this.patternCacheBytes = patternCacheBytes;
+    }
+
+    protected long patternCacheBytes = DEFAULT_PATTERN_CACHE_BYTES;
+
+    /**
+     * Sets the parameters of the HNSW strategy.
+     * @param m the maximal degree of a node on the upper layers, doubled on the bottom layer.
+     * @param efConstruction the beam width while building the index.
+     * @param efSearch the beam width while querying, which trades latency for recall.
+     */
+    public void setHNSWParameters(int m, int efConstruction, int efSearch) {
+        Helper.checkPositive("m", m);
+        Helper.checkPositive("efConstruction", efConstruction);
+        Helper.checkPositive("efSearch", efSearch);
+        this.hnswM = m;
+        this.hnswEfConstruction = efConstruction;
+        this.hnswEfSearch = efSearch;
+        if (hnsw != null)
+            hnsw.setEfSearch(efSearch);
+    }
+
+    protected int hnswM = HNSWIndex.DEFAULT_M;
+    protected int hnswEfConstruction = HNSWIndex.DEFAULT_EF_CONSTRUCTION;
+    protected int hnswEfSearch = HNSWIndex.DEFAULT_EF_SEARCH;
+
+    /**
+     * Sets the NN-Descent parameters of the approximate k-NN graph.
+     * @param delta the early termination coefficient.
+     * @param rho the sampling coefficient.
+     * @param maxIterations the maximal number of iterations.
+     */
+    public void setNNDescentParameters(double delta, double rho, int maxIterations) {
+        Helper.checkNotNegative("delta", delta);
+        Helper.checkPositive("rho", rho);
+        Helper.checkPositive("maxIterations", maxIterations);
+        this.nnDescentDelta = delta;
+        this.nnDescentRho = rho;
+        this.nnDescentMaxIterations = maxIterations;
+    }
+
+    /**
+     * Seeds every LLR solve with the weights of the previous instance solved, mapped onto the shared neighbours. It
+     * saves SMO sweeps when consecutive instances are close, e.g. on sorted or clustered data. The chain of seeds
+     * restarts every PARALLEL_GRAIN instances, or batches of instances, of {@link #imputeAll(Instances)}, at the same
+     * positions whatever the number of threads, so the imputed values do not depend on the threads, but they depend
+     * slightly on the imputation order and on {@link #setBatchedSolve(boolean)}.
+     */
+    public void setWarmStart(boolean warmStart) {
+        this.warmStart = warmStart;
+    }
+
+    protected boolean warmStart = false;
+
+    /**
+     * Switches {@link #imputeAll(Instances)} between solving the instances of the same pattern and the same ordered
+     * neighbours in batches, which prepares their shared Gram matrix once, and solving every instance on its own.
+     * Both give identical results unless warm start is on. The batched mode keeps the neighbour lists of all the
+     * incomplete instances in memory. The default is true.
+     */
+    public void setBatchedSolve(boolean batchedSolve) {
+        this.batchedSolve = batchedSolve;
+    }
+
+    protected boolean batchedSolve = true;
+
+    /**
+     * Sets the relative tolerance of the SMO solvers, see {@link SolverWorkspace#setTolerance(double)}. A warm start
+     * only saves sweeps with a positive tolerance, as otherwise the solves mostly run to the sweep limit.
+     */
+    public void setSolverTolerance(double solverTolerance) {
+        Helper.checkNotNegative("solverTolerance", solverTolerance);
+        this.solverTolerance = solverTolerance;
+    }
+
+    protected double solverTolerance = 0.0;
+
+    /**
+     * Sets the parameters of the Simplex strategy.
+     * @param tolerance the tolerance of the optimality conditions, relative to the largest squared neighbour norm.
+     * @param maxIterations the iteration budget of a solve.
+     */
+    public void setSimplexParameters(double tolerance, int maxIterations) {
+        Helper.checkPositive("tolerance", tolerance);
+        Helper.checkPositive("maxIterations", maxIterations);
+        this.simplexTolerance = tolerance;
+        this.simplexMaxIterations = maxIterations;
+    }
+
+    protected double simplexTolerance = DEFAULT_SIMPLEX_TOLERANCE;
+    protected int simplexMaxIterations = DEFAULT_SIMPLEX_MAX_ITERATIONS;
+    protected final LongAdder solveCount = new LongAdder();
+    protected final LongAdder solverSweeps = new LongAdder();
+    protected final LongAdder unconvergedSolves = new LongAdder();
+
+    /**
+     * Returns the number of LLR solves since the last {@link #resetSolverStatistics()}.
+     */
+    public long getSolveCount() {
+        return solveCount.sum();
+    }
+
+    /**
+     * Returns the total number of SMO sweeps of the LLR solves since the last {@link #resetSolverStatistics()}.
+     */
+    public long getSolverSweeps() {
+        return solverSweeps.sum();
+    }
+
+    /**
+     * Returns the number of LLR solves that ran out of their sweep budget since the last
+     * {@link #resetSolverStatistics()}.
+     */
+    public long getUnconvergedSolves() {
+        return unconvergedSolves.sum();
+    }
+
+    public void resetSolverStatistics() {
+        solveCount.reset();
+        solverSweeps.reset();
+        unconvergedSolves.reset();
+    }
+
+    protected double nnDescentDelta = ParallelNNDescent.DEFAULT_DELTA;
+    protected double nnDescentRho = ParallelNNDescent.DEFAULT_RHO;
+    protected int nnDescentMaxIterations = ParallelNNDescent.DEFAULT_MAX_ITERATIONS;
+
+    /**
+     * Sets the snapshot file of the k-NN graph. If the file exists and was taken on the same complete data with the
+     * same k, {@link #buildClassifier(Instances)} restores the graph from it, otherwise the built graph is written to
+     * it. A file which cannot be read is overwritten as well, and counted as
+     * {@link ImputeMetrics.Counter#UnreadableSnapshots}.
+     */
+    public void setIndexFile(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    protected File indexFile;
+
+    /**
+     * Sets whether the SMO strategies solve the QP on its Gram form, built from the neighbour rows and their cached
+     * squared norms, instead of forming At*A explicitly. The results agree up to rounding.
+     */
+    public void setGramSolver(boolean gramSolver) {
+        this.gramSolver = gramSolver;
+    }
+
+    protected boolean gramSolver = true;
+
+    /**
+     * Sets the storage format of the trained data. The compact formats trade a small, documented loss of accuracy
+     * (see {@link FeatureMatrix.Precision}) for a half or a quarter of the memory, and could keep the values off the
+     * Java heap. The trained data is no longer kept as weka instances in any format. It takes effect on the next
+     * {@link #buildClassifier(Instances)} or {@link #loadIndex(File)}.
+     * @param precision the storage format.
+     * @param direct whether the compact formats are stored in direct buffers off the Java heap.
+     */
+    public void setFeatureStorage(FeatureMatrix.Precision precision, boolean direct) {
+        Helper.checkNotNull("precision", precision);
+        this.featurePrecision = precision;
+        this.directFeatures = direct;
+    }
+
+    protected FeatureMatrix.Precision featurePrecision = FeatureMatrix.Precision.Float64;
+    protected boolean directFeatures = false;
+
     public void setLLRStrategy(LLRStrategy strategy) {
         this.llrStrategy = strategy;
     }
@@ -52,13 +290,16 @@ public class UniformLLR extends AbstractClassifier {
 
     public enum NNStrategy {
         BruteForce,
-        Approximate
+        Approximate,
+        Tree,
+        HNSW
     }
     public enum LLRStrategy {
         Average,
         OptimizeSlow,
         Optimize2d,
-        Optimize1d
+        Optimize1d,
+        Simplex // The projected gradient solver of the exact simplex constraint.
     }
 
     public UniformLLR() {
@@ -89,56 +330,235 @@ public class UniformLLR extends AbstractClassifier {
             throw new Exception("The class index is not set yet.");
         }
         classIndex = instances.classIndex();
+        long buildStart = ImputeMetrics.start();
 
-        completeData = new Instances(instances, 0);
+        // Only the header of the complete data is kept, the values live in the feature matrix.
+        Instances complete = new Instances(instances, 0);
         for (Instance instance : instances) {
             if (!instance.classIsMissing() && !instance.hasMissingValue()) {
-                completeData.add(instance);
+                complete.add(instance);
             }
         }
-        if (completeData.numInstances() < MIN_INSTANCES_TO_TRAIN) {
+        ImputeMetrics.add(ImputeMetrics.Counter.TrainRowsSkipped, instances.numInstances() - complete.numInstances());
+        if (complete.numInstances() < MIN_INSTANCES_TO_TRAIN) {
             throw new Exception("Number of complete instances is too few to train a kNN based LLR classifier.");
         }
+        completeData = new Instances(instances, 0);
+        features = new FeatureMatrix(null, complete, featurePrecision, directFeatures);
+        patternCache = patternCacheBytes > 0 ? new PatternCache(features, patternCacheBytes) : null;
+
+        // Restore the k-NN graph from the snapshot if it was taken on the same data. A snapshot which cannot be read,
+        // e.g. a corrupt file or one of an older version, is a miss like one of other data.
+        IndexSnapshot snapshot = null;
+        if (indexFile != null && indexFile.exists()) {
+            try {
+                snapshot = IndexSnapshot.read(indexFile);
+                if (!snapshot.matches(completeData, features))
+                    snapshot = null;
+            } catch (IOException | RuntimeException e) {
+                ImputeMetrics.add(ImputeMetrics.Counter.UnreadableSnapshots, 1);
+                snapshot = null;
+            }
+        }
+        long indexStart = ImputeMetrics.start();
+        boolean restored = buildIndex(snapshot);
+        ImputeMetrics.stop(ImputeMetrics.Phase.Index, indexStart);
+        if (indexFile != null && !restored)
+            saveIndex(indexFile);
+        ImputeMetrics.stop(ImputeMetrics.Phase.Build, buildStart);
+    }
 
-        // Build the k-NN graph if necessary.
-        if (nnStrategy == NNStrategy.Approximate)
+    /**
+     * Builds the k-NN graph or tree if necessary, restoring the graph from a snapshot when possible.
+     * @param snapshot the snapshot of the trained data, which could be null.
+     * @return whether the snapshot already holds the index, i.e. it need not be written again.
+     */
+    protected boolean buildIndex(IndexSnapshot snapshot) throws InterruptedException {
+        if (nnStrategy == NNStrategy.Approximate) {
+            if (snapshot != null && snapshot.k() > 0 && snapshot.k() == Math.min(initK, features.numRows() - 1)) {
+                restoreKNNGraph(snapshot);
+                return true;
+            }
             buildKNNGraph();
+            return false;
+        } else if (nnStrategy == NNStrategy.Tree) {
+            buildKDTree();
+        } else if (nnStrategy == NNStrategy.HNSW) {
+            buildHNSW();
+        }
+        return snapshot != null;
+    }
+
+    /**
+     * Writes the trained data and the k-NN graph, if any, to a snapshot file.
+     * @param file the file to write.
+     * @throws IOException if the file could not be written.
+     */
+    public void saveIndex(File file) throws IOException {
+        Helper.checkNotNull("Trained complete data", completeData);
+        IndexSnapshot.write(file, completeData, features, nnStrategy == NNStrategy.Approximate ? nnDescent : null);
+    }
+
+    /**
+     * Restores the trained state from a snapshot file written by {@link #saveIndex(File)}, instead of calling
+     * {@link #buildClassifier(Instances)}. The k-NN graph is rebuilt only if the snapshot has none of the same k,
+     * and the tree or the HNSW index is always rebuilt.
+     * @param file the file to read.
+     * @throws Exception if the file could not be read.
+     */
+    public void loadIndex(File file) throws Exception {
+        Helper.checkFileExists(file.getPath());
+        IndexSnapshot snapshot = IndexSnapshot.read(file);
+        classIndex = snapshot.header().classIndex();
+        completeData = new Instances(snapshot.header(), 0);
+        features = featurePrecision == FeatureMatrix.Precision.Float64 ? snapshot.features()
+                : new FeatureMatrix(snapshot.features(), completeData, featurePrecision, directFeatures);
+        patternCache = patternCacheBytes > 0 ? new PatternCache(features, patternCacheBytes) : null;
+        buildIndex(snapshot);
+    }
+
+    /**
+     * Returns the attributes that a query could be compared on, i.e. the numeric attributes other than the class.
+     */
+    protected int[] splitColumns() {
+        int[] splitColumns = new int[completeData.numAttributes()];
+        int numSplitColumns = 0;
+        for (int i=0; i<completeData.numAttributes(); ++i) {
+            if (i != classIndex && completeData.attribute(i).isNumeric())
+                splitColumns[numSplitColumns++] = i;
+        }
+        return Arrays.copyOf(splitColumns, numSplitColumns);
+    }
+
+    protected void buildKDTree() {
+        tree = new KDTree(features, splitColumns());
+    }
+
+    protected void buildHNSW() throws InterruptedException {
+        hnsw = new HNSWIndex(features, splitColumns(), hnswM, hnswEfConstruction, hnswEfSearch);
+        hnsw.build(indexThreads());
+    }
+
+    protected void buildKNNGraph() throws InterruptedException {
+        // Run NN-Descent on the packed matrix, then wrap the neighbour lists into a graph for the fast search.
+        int k = Math.min(initK, features.numRows() - 1);
+        nnDescent = new ParallelNNDescent(features, graphColumns(), k);
+        nnDescent.setDelta(nnDescentDelta);
+        nnDescent.setRho(nnDescentRho);
+        nnDescent.setMaxIterations(nnDescentMaxIterations);
+        nnDescent.compute(indexThreads());
+        wrapKNNGraph();
+    }
+
+    protected void restoreKNNGraph(IndexSnapshot snapshot) {
+        nnDescent = snapshot.graph(features, graphColumns());
+        nnDescent.setDelta(nnDescentDelta);
+        nnDescent.setRho(nnDescentRho);
+        nnDescent.setMaxIterations(nnDescentMaxIterations);
+        wrapKNNGraph();
     }
 
-    protected void buildKNNGraph() {
-        // Create the nodes
-        int count = completeData.numInstances();
-        ArrayList<Node> nodes = new ArrayList<>(count);
+    protected void wrapKNNGraph() {
+        graph = new Graph<>(nnDescent.k);
+        graph.setSimilarity(graphSimilarity());
+        graphNodes = new ArrayList<>(features.numRows());
+        updateKNNGraph();
+    }
+
+    /**
+     * Creates the nodes of the new rows, re-points the existing nodes to the current matrix, and replaces the
+     * neighbour lists that NN-Descent has updated.
+     */
+    protected void updateKNNGraph() {
+        int count = features.numRows();
+        for (int i = 0; i < graphNodes.size(); i++) {
+            graphNodes.get(i).value = new GraphPoint(features, i);
+        }
+        for (int i = graphNodes.size(); i < count; i++) {
+            // The value of our nodes will be a view of the packed feature row.
+            graphNodes.add(new Node<>(String.valueOf(i), new GraphPoint(features, i)));
+        }
+        int k = graph.getK();
         for (int i = 0; i < count; i++) {
-            // The value of our nodes will be weka instance.
-            nodes.add(new Node<>(String.valueOf(i), completeData.get(i)));
-        }
-        // Instantiate and configure the build algorithm
-        NNDescent builder = new NNDescent();
-        builder.setK(initK);
-        // early termination coefficient
-        builder.setDelta(0.1);
-        // sampling coefficient
-        builder.setRho(0.2);
-        builder.setMaxIterations(10);
-        builder.setSimilarity(new SimilarityInterface<Instance>() {
+            if (!nnDescent.isUpdated(i))
+                continue;
+            int[] ids = nnDescent.neighbors(i);
+            double[] distances = nnDescent.distances(i);
+            NeighborList nl = new NeighborList(k);
+            for (int j=0; j<k; ++j) {
+                nl.add(new Neighbor(graphNodes.get(ids[j]), 1.0 / (1.0 + distances[j])));
+            }
+            graph.put(graphNodes.get(i), nl);
+        }
+    }
+
+    /**
+     * Returns the attributes that the k-NN graph is built on, i.e. all the attributes other than the class.
+     */
+    protected int[] graphColumns() {
+        int[] columns = new int[features.numColumns()];
+        int numColumns = 0;
+        for (int i=0; i<features.numColumns(); ++i) {
+            if (i != classIndex)
+                columns[numColumns++] = i;
+        }
+        return Arrays.copyOf(columns, numColumns);
+    }
+
+    protected SimilarityInterface<GraphPoint> graphSimilarity() {
+        final int numAttributes = features.numColumns();
+        final int classIndex = this.classIndex;
+        return new SimilarityInterface<GraphPoint>() {
             @Override
-            public double similarity(Instance v1, Instance v2) {
-                // Ignore instance compatibility checking.
+            public double similarity(GraphPoint v1, GraphPoint v2) {
+                // Ignore instance compatibility checking. Missing values are stored as NaN.
+                double[] d1 = v1.data, d2 = v2.data;
+                int o1 = v1.offset, o2 = v2.offset;
                 double diff = 0.0;
                 double a;
-                for (int i=0; i<v1.numAttributes(); ++i) {
-                    if (i != classIndex && !v1.isMissing(i) && !v2.isMissing(i)) {
-                        a = v1.value(i)-v2.value(i);
+                for (int i=0; i<numAttributes; ++i) {
+                    a = (d1 != null ? d1[o1+i] : v1.features.get(o1+i)) - (d2 != null ? d2[o2+i] : v2.features.get(o2+i));
+                    if (i != classIndex && a == a) {
                         diff += a * a;
                     }
                 }
                 return 1.0 / (1.0 + Math.sqrt(diff));
             }
-        });
+        };
+    }
 
-        // Run the algorithm and get computed graph
-        graph = builder.computeGraph(nodes);
+    /**
+     * Adds the complete instances of a data set to the trained data without a full rebuild. The new rows join the
+     * k-NN graph by NN-Descent iterations around them, while the tree and the HNSW index are rebuilt.
+     * @param instances the instances to add, whose incomplete ones are ignored.
+     * @throws Exception if the headers do not match.
+     */
+    public void addInstances(Instances instances) throws Exception {
+        Helper.checkNotNull("instances", instances);
+        Helper.checkNotNull("Trained complete data", completeData);
+        if (!instances.equalHeaders(completeData)) {
+            throw new Exception("The instance headers do not match.");
+        }
+
+        Instances added = new Instances(completeData, 0);
+        for (Instance instance : instances) {
+            if (!instance.classIsMissing() && !instance.hasMissingValue()) {
+                added.add(instance);
+            }
+        }
+        if (added.numInstances() == 0)
+            return;
+        features = new FeatureMatrix(features, added);
+        patternCache = patternCacheBytes > 0 ? new PatternCache(features, patternCacheBytes) : null;
+
+        if (nnStrategy == NNStrategy.Approximate) {
+            nnDescent.add(features, indexThreads());
+            updateKNNGraph();
+        } else if (nnStrategy == NNStrategy.Tree) {
+            buildKDTree();
+        } else if (nnStrategy == NNStrategy.HNSW) {
+            buildHNSW();
+        }
     }
 
 
@@ -162,78 +582,305 @@ public class UniformLLR extends AbstractClassifier {
     @Override
     public double[] distributionForInstance(Instance instance) throws Exception {
         Helper.checkNotNull("Trained complete data", completeData);
-        Helper.checkPositive("Trained instances number", completeData.numInstances());
-        if (!instance.equalHeaders(completeData.get(0))) {
+        Helper.checkPositive("Trained instances number", features.numRows());
+        if (instance.dataset() == null || !completeData.equalHeaders(instance.dataset())) {
             throw new Exception("The instance headers do not match.");
         }
 
-        int numInstances = completeData.numInstances();
-        int k = Math.min(initK, numInstances);
-        int classIndex = completeData.classIndex();
+        // A one-off workspace reuses no products, so it skips the Gram cache.
+        MissingPattern pattern = splitAttributes(instance);
+        pattern.projection = projection(pattern, 1);
+        return reconstruct(instance, pattern, new Workspace(false));
+    }
+
+    /**
+     * Imputes all the incomplete instances of a data set in one pass. Instances sharing the same missing pattern
+     * are grouped together, so that the attribute split and the QP buffers are prepared only once per pattern.
+     * Note that this operation will fill in the missing fields of the instances in place.
+     * @param instances the data set to impute.
+     * @return the imputed data set, i.e. the input instances.
+     * @throws Exception if the headers do not match or any of the instances could not be reconstructed.
+     */
+    public Instances imputeAll(Instances instances) throws Exception {
+        Helper.checkNotNull("instances", instances);
+        Helper.checkNotNull("Trained complete data", completeData);
+        Helper.checkPositive("Trained instances number", features.numRows());
+        if (!instances.equalHeaders(completeData)) {
+            throw new Exception("The instance headers do not match.");
+        }
+
+        // Group the incomplete instances by their missing patterns.
+        LinkedHashMap<BitSet, List<Integer>> groups = new LinkedHashMap<>();
+        for (int row=0; row<instances.numInstances(); ++row) {
+            Instance instance = instances.get(row);
+            if (instance.hasMissingValue()) {
+                BitSet missing = new BitSet(instance.numAttributes());
+                for (int i=0; i<instance.numAttributes(); ++i) {
+                    if (instance.isMissing(i))
+                        missing.set(i);
+                }
+                groups.computeIfAbsent(missing, key -> new ArrayList<>()).add(row);
+            }
+        }
+
+        // Flatten the groups so that instances of the same pattern stay adjacent.
+        int numIncomplete = 0;
+        for (List<Integer> rows: groups.values())
+            numIncomplete += rows.size();
+        int[] order = new int[numIncomplete];
+        MissingPattern[] patterns = new MissingPattern[numIncomplete];
+        int pos = 0;
+        for (List<Integer> rows: groups.values()) {
+            MissingPattern pattern = splitAttributes(instances.get(rows.get(0)));
+            pattern.projection = projection(pattern, rows.size());
+            for (int row: rows) {
+                order[pos] = row;
+                patterns[pos] = pattern;
+                ++pos;
+            }
+        }
+
+        // Reconstruct the instances. Each instance is reconstructed independently against the read-only trained
+        // data, so the result does not depend on the number of threads, as long as the index was built serially.
+        // With warm start, the chains of seeds restart at fixed positions, see startChunk.
+        // The Approximate strategy is the exception, as the fast search of java-graphs starts from nodes drawn by an
+        // unseeded random generator, so its neighbours differ from run to run even on a single thread. With batched
+        // solves, the neighbours are found first and the instances of the same neighbours are solved together, which
+        // gives the same result.
+        ForkJoinPool pool = numThreads > 1 && numIncomplete > PARALLEL_GRAIN ? new ForkJoinPool(numThreads) : null;
+        ThreadLocal<Workspace> workspaces = ThreadLocal.withInitial(Workspace::new);
+        try {
+            if (batchedSolve) {
+                int[][] neighbours = new int[numIncomplete][];
+                forEach(pool, numIncomplete, workspaces, (i, workspace) ->
+                        neighbours[i] = findNeighbours(instances.get(order[i]), patterns[i], workspace));
+                int[] batches = batchByNeighbours(order, patterns, neighbours);
+                forEach(pool, batches.length - 1, workspaces, (b, workspace) ->
+                        reconstructBatch(instances, order, patterns, neighbours, batches[b], batches[b + 1], workspace));
+            } else {
+                forEach(pool, numIncomplete, workspaces, (i, workspace) ->
+                        reconstruct(instances.get(order[i]), patterns[i], workspace));
+            }
+        } catch (ReconstructException e) {
+            throw e.getCause();
+        } finally {
+            if (pool != null)
+                pool.shutdown();
+        }
+        ImputeMetrics.add(ImputeMetrics.Counter.RowsImputed, numIncomplete);
+        ImputeMetrics.add(ImputeMetrics.Counter.RowsSkipped, instances.numInstances() - numIncomplete);
+        return instances;
+    }
+
+    /**
+     * Runs an action for the indices [0, n), on the pool if any.
+     */
+    protected static void forEach(ForkJoinPool pool, int n, ThreadLocal<Workspace> workspaces, IndexAction action)
+            throws Exception {
+        if (pool == null) {
+            Workspace workspace = workspaces.get();
+            for (int i=0; i<n; ++i) {
+                startChunk(i, workspace);
+                action.apply(i, workspace);
+            }
+        } else {
+            pool.invoke(new ReconstructTask(0, n, workspaces, action));
+        }
+    }
+
+    /**
+     * Forgets the warm start solution at the start of every chunk of PARALLEL_GRAIN indices. The tasks of the pool
+     * split the indices at chunk boundaries, so an index is seeded from the same solution on any number of threads.
+     */
+    protected static void startChunk(int i, Workspace workspace) {
+        if (i % PARALLEL_GRAIN == 0)
+            workspace.solver.forgetSolution();
+    }
 
-        // Split attributes into complete/incomplete sets.
-        List<Integer> completeIndices = new ArrayList<>();
-        List<Integer> incompleteIndices = new ArrayList<>();
+    /**
+     * Splits the attributes of an instance into complete/incomplete sets.
+     */
+    protected MissingPattern splitAttributes(Instance instance) throws Exception {
+        int classIndex = completeData.classIndex();
+        int[] completeIndices = new int[instance.numAttributes()];
+        int[] incompleteIndices = new int[instance.numAttributes()];
+        int numComplete = 0, numIncomplete = 0;
         for (int i=0; i<instance.numAttributes(); ++i) {
             if (instance.isMissing(i)) {
-                incompleteIndices.add(i);
+                incompleteIndices[numIncomplete++] = i;
             } else if (instance.attribute(i).isNumeric() && i != classIndex) {
-                completeIndices.add(i);
+                completeIndices[numComplete++] = i;
             }
         }
-        if (completeIndices.size() < MIN_ATTRIBUTE_TO_RECONSTRUCT) {
+        if (numComplete < MIN_ATTRIBUTE_TO_RECONSTRUCT) {
             // Failed to classify.
             throw new Exception("The number of complete attributes is too few to reconstruct. At least "
                     + MIN_ATTRIBUTE_TO_RECONSTRUCT + " is required.");
         }
+        return new MissingPattern(Arrays.copyOf(completeIndices, numComplete),
+                Arrays.copyOf(incompleteIndices, numIncomplete));
+    }
+
+    /**
+     * Reconstructs the missing fields of an instance from its k nearest complete neighbours.
+     * @param instance the instance to reconstruct, whose missing fields are filled in place.
+     * @param pattern the complete/incomplete split of the instance attributes.
+     * @param workspace the reusable buffers of the QP problem.
+     * @return the class histogram if the class value is missing, null otherwise.
+     */
+    protected double[] reconstruct(Instance instance, MissingPattern pattern, Workspace workspace) throws Exception {
+        return reconstruct(instance, pattern, findNeighbours(instance, pattern, workspace), false, workspace);
+    }
+
+    /**
+     * Finds the k nearest complete neighbours of an instance over its complete attributes.
+     */
+    protected int[] findNeighbours(Instance instance, MissingPattern pattern, Workspace workspace) throws Exception {
+        int k = Math.min(initK, features.numRows());
+        long start = ImputeMetrics.start();
+        int[] nearestIndices = calculateKNN(workspace.query(instance), pattern.completeIndices, pattern.projection,
+                k, workspace);
+        if (start != 0L) {
+            ImputeMetrics.stop(ImputeMetrics.Phase.Search, start);
+            ImputeMetrics.add(ImputeMetrics.Counter.NeighboursRequested, k);
+            ImputeMetrics.add(ImputeMetrics.Counter.NeighboursReturned, nearestIndices.length);
+            if (nearestIndices.length < k)
+                ImputeMetrics.add(ImputeMetrics.Counter.ShortSearches, 1);
+        }
+        return nearestIndices;
+    }
+
+    /**
+     * Returns the projection of the complete attributes of a pattern, or null if it is not used. It is resolved once
+     * per pattern before the rows are reconstructed, so the search and the QP of a row see the same one.
+     * @param rows the number of rows of the pattern about to be imputed.
+     */
+    protected PatternCache.Projection projection(MissingPattern pattern, int rows) {
+        // Only the scalar brute-force scan reads all the rows. The other searches and the QP assembly read the k
+        // neighbours, which are gathered for much less than a projection costs.
+        boolean useProjection = patternCache != null && nnStrategy == NNStrategy.BruteForce && !vectorizedDistance;
+        return useProjection ? patternCache.get(pattern.completeKey, pattern.completeIndices, rows) : null;
+    }
 
-        // Get indices of k-NN.
-        int[] nearestIndices = calculateKNN(instance, completeIndices, k);
-        // In case there are not exactly k neighbors returned.
-        if (k != nearestIndices.length)
-            k = nearestIndices.length;
+    /**
+     * Reconstructs the missing fields of an instance from the given neighbours.
+     * @param instance the instance to reconstruct, whose missing fields are filled in place.
+     * @param pattern the complete/incomplete split of the instance attributes.
+     * @param nearestIndices the neighbours, nearest first.
+     * @param sameNeighbours whether the previous reconstruction on the workspace had the same pattern and
+     *                       neighbours, in which case its Gram matrix is reused.
+     * @param workspace the reusable buffers of the QP problem.
+     * @return the class histogram if the class value is missing, null otherwise.
+     */
+    protected double[] reconstruct(Instance instance, MissingPattern pattern, int[] nearestIndices,
+                                   boolean sameNeighbours, Workspace workspace) throws Exception {
+        int k = nearestIndices.length;
+        int[] completeIndices = pattern.completeIndices;
+        double[] query = workspace.query(instance);
+        PatternCache.Projection projection = pattern.projection;
 
         // Solve the QP for the best reconstruction.
+        long solveStart = ImputeMetrics.start();
         double[] weights;
         if (llrStrategy == LLRStrategy.Average) { // Average strategy.
-            weights = new double[k];
+            weights = workspace.weights(k);
             for (int i=0; i<k; ++i)
                 weights[i] = 1.0/k;
+        } else if (llrStrategy == LLRStrategy.Simplex
+                || (gramSolver && llrStrategy != LLRStrategy.OptimizeSlow)) { // Optimization on the Gram form.
+            boolean is1DOptimize = llrStrategy == LLRStrategy.Optimize1d;
+            double bias = is1DOptimize ? 1.0 : 0.0; // The product of the augmented constant rows.
+            int d = completeIndices.length;
+            int[] offsets = workspace.offsets(k);
+            double[] rows, norms = null, projectedQuery;
+            if (projection != null) {
+                rows = projection.rows();
+                norms = projection.squaredNorms();
+                for (int j = 0; j < k && !sameNeighbours; ++j)
+                    offsets[j] = nearestIndices[j] * d;
+                projectedQuery = workspace.projectedQuery = projection.project(query, workspace.projectedQuery);
+            } else {
+                rows = workspace.gathered(k * d);
+                for (int j = 0; j < k && !sameNeighbours; ++j) {
+                    offsets[j] = j * d;
+                    features.gather(nearestIndices[j], completeIndices, rows, j * d);
+                }
+                projectedQuery = workspace.projectedQuery(d);
+                for (int i = 0; i < d; ++i)
+                    projectedQuery[i] = query[completeIndices[i]];
+            }
+
+            SolverWorkspace solver = workspace.solver;
+            double[][] G = solver.gram(k);
+            double[] Atb = solver.atb(k);
+            if (!sameNeighbours)
+                workspace.gramCache().fill(rows, offsets, d, nearestIndices, norms, bias,
+                        workspace.cachesGram ? projection : null, k, G);
+            for (int j = 0; j < k; ++j)
+                Atb[j] = DenseMatrix.dot(rows, offsets[j], projectedQuery, 0, d) + bias;
+            double btb = DenseMatrix.dot(projectedQuery, 0, projectedQuery, 0, d) + bias;
+            weights = seedWeights(nearestIndices, k, workspace);
+            if (llrStrategy == LLRStrategy.Simplex)
+                weights = simplexLLRSolver(G, Atb, k, simplexTolerance, simplexMaxIterations, solver, weights);
+            else if (is1DOptimize)
+                weights = gramBased1dLLRSolver(G, Atb, btb, k, solver, weights);
+            else
+                weights = gramBased2dLLRSolver(G, Atb, btb, k, solver, weights);
+            recordSolve(nearestIndices, k, weights, workspace);
         } else { // Optimization strategy.
-            int d = completeIndices.size();
+            int d = completeIndices.length;
             boolean is1DOptimize = llrStrategy == LLRStrategy.Optimize1d;
-            double[][] halfP = is1DOptimize ? new double[d+1][k] : new double[d][k];
-            for (int j = 0; j < k; ++j) {
-                Instance nb = completeData.get(nearestIndices[j]);
-                for (int i = 0; i < d; ++i) {
-                    halfP[i][j] = nb.value(completeIndices.get(i));
+            workspace.ensureCapacity(is1DOptimize ? d+1 : d, k);
+            double[][] halfP = workspace.halfP;
+            if (projection != null) {
+                double[] rows = projection.rows();
+                for (int j = 0; j < k; ++j) {
+                    int offset = nearestIndices[j] * d;
+                    for (int i = 0; i < d; ++i) {
+                        halfP[i][j] = rows[offset + i];
+                    }
+                    if (is1DOptimize) halfP[d][j] = 1.0;
+                }
+            } else {
+                for (int j = 0; j < k; ++j) {
+                    int offset = features.offset(nearestIndices[j]);
+                    for (int i = 0; i < d; ++i) {
+                        halfP[i][j] = features.get(offset + completeIndices[i]);
+                    }
+                    if (is1DOptimize) halfP[d][j] = 1.0;
                 }
-                if (is1DOptimize) halfP[d][j] = 1.0;
             }
-            double[] halfQ = is1DOptimize ? new double[d+1] : new double[d];
+            double[] halfQ = workspace.halfQ;
             for (int i = 0; i < d; ++i) {
-                halfQ[i] = instance.value(completeIndices.get(i));
+                halfQ[i] = query[completeIndices[i]];
             }
             if (is1DOptimize) halfQ[d] = 1.0;
 
-            if (llrStrategy == LLRStrategy.Optimize1d)
-                weights = smoBased1dLLRSolver(halfP, halfQ);
-            else if (llrStrategy == LLRStrategy.Optimize2d)
-                weights = smoBased2dLLRSolver(halfP, halfQ);
-            else
-                weights = slowSolver(halfP, halfQ);
+            int rows = is1DOptimize ? d+1 : d;
+            if (llrStrategy == LLRStrategy.Optimize1d || llrStrategy == LLRStrategy.Optimize2d) {
+                weights = seedWeights(nearestIndices, k, workspace);
+                if (is1DOptimize)
+                    weights = smoBased1dLLRSolver(halfP, halfQ, rows, k, workspace.solver, weights);
+                else
+                    weights = smoBased2dLLRSolver(halfP, halfQ, rows, k, workspace.solver, weights);
+                recordSolve(nearestIndices, k, weights, workspace);
+            } else
+                weights = slowSolver(workspace.trimmedHalfP(rows, k), Arrays.copyOf(halfQ, rows));
             Helper.checkNotNull("weights", weights);
-            Helper.checkIntEqual(weights.length, k);
+            if (weights.length < k) {
+                throw new Exception("Expected " + k + " weights but got " + weights.length);
+            }
         }
+        ImputeMetrics.stop(ImputeMetrics.Phase.Solve, solveStart);
 
         // Output the imputed data.
         double[] classHist = null;
-        for (int i: incompleteIndices) {
+        for (int i: pattern.incompleteIndices) {
             Attribute attr = instance.attribute(i);
             if (attr.isNumeric()) {
                 double sum = 0.0;
                 for (int j=0; j<k; ++j) {
-                    sum += weights[j]*completeData.get(nearestIndices[j]).value(i);
+                    sum += weights[j]*features.value(nearestIndices[j], i);
                 }
                 if (instance.classIndex() == i) {
                     classHist = new double[] {sum};
@@ -244,7 +891,7 @@ public class UniformLLR extends AbstractClassifier {
                 Helper.checkPositive("attribute " + i + " values number", attr.numValues());
                 double[] hist = new double[attr.numValues()];
                 for (int j=0; j<k; ++j) {
-                    hist[(int)Math.round(completeData.get(nearestIndices[j]).value(i))] += weights[j];
+                    hist[(int)Math.round(features.value(nearestIndices[j], i))] += weights[j];
                 }
 
                 if (instance.classIndex() == i) {
@@ -260,19 +907,136 @@ public class UniformLLR extends AbstractClassifier {
         return classHist;
     }
 
-    protected int[] calculateKNN(Instance instance, List<Integer> completeIndices, int k) throws Exception {
+    /**
+     * Reconstructs a batch of instances of the same pattern and the same neighbours. The Gram matrix of the
+     * neighbours is prepared once and only the query side of the QP is set up per instance. An instance whose
+     * complete values equal those of the last solved one, which is always the case for the Average strategy as far
+     * as the result goes, takes its imputed values without solving.
+     * @param from the first position of the batch in order, inclusive.
+     * @param to the last position of the batch in order, exclusive.
+     */
+    protected void reconstructBatch(Instances instances, int[] order, MissingPattern[] patterns, int[][] neighbours,
+                                    int from, int to, Workspace workspace) throws Exception {
+        Instance solved = instances.get(order[from]);
+        reconstruct(solved, patterns[from], neighbours[from], false, workspace);
+        for (int i=from+1; i<to; ++i) {
+            Instance instance = instances.get(order[i]);
+            boolean duplicate = llrStrategy == LLRStrategy.Average;
+            for (int j=0; j<patterns[i].completeIndices.length && !duplicate; ++j) {
+                int column = patterns[i].completeIndices[j];
+                if (instance.value(column) != solved.value(column))
+                    break;
+                duplicate = j == patterns[i].completeIndices.length - 1;
+            }
+            if (duplicate) {
+                for (int j: patterns[i].incompleteIndices) {
+                    if (j != instance.classIndex())
+                        instance.setValue(j, solved.value(j));
+                }
+            } else {
+                reconstruct(instance, patterns[i], neighbours[i], true, workspace);
+                solved = instance;
+            }
+        }
+    }
+
+    /**
+     * Reorders the instances of each pattern so that those of the same neighbours are adjacent, keeping the first
+     * appearance order otherwise.
+     * @return the start positions of the batches, followed by the number of instances.
+     */
+    protected static int[] batchByNeighbours(int[] order, MissingPattern[] patterns, int[][] neighbours) {
+        int n = order.length;
+        int[] sortedOrder = new int[n];
+        MissingPattern[] sortedPatterns = new MissingPattern[n];
+        int[][] sortedNeighbours = new int[n][];
+        int[] starts = new int[n + 1];
+        int numBatches = 0, pos = 0;
+        for (int from=0, to; from<n; from=to) {
+            for (to=from+1; to<n && patterns[to]==patterns[from]; ++to);
+            LinkedHashMap<NeighbourKey, List<Integer>> batches = new LinkedHashMap<>();
+            for (int i=from; i<to; ++i)
+                batches.computeIfAbsent(new NeighbourKey(neighbours[i]), key -> new ArrayList<>()).add(i);
+            for (List<Integer> batch: batches.values()) {
+                starts[numBatches++] = pos;
+                for (int i: batch) {
+                    sortedOrder[pos] = order[i];
+                    sortedPatterns[pos] = patterns[i];
+                    sortedNeighbours[pos] = neighbours[i];
+                    ++pos;
+                }
+            }
+        }
+        starts[numBatches++] = n;
+        System.arraycopy(sortedOrder, 0, order, 0, n);
+        System.arraycopy(sortedPatterns, 0, patterns, 0, n);
+        System.arraycopy(sortedNeighbours, 0, neighbours, 0, n);
+        return Arrays.copyOf(starts, numBatches);
+    }
+
+    /**
+     * Returns the weight buffer of an SMO solve, seeded from the previous solution if warm start is on.
+     */
+    protected double[] seedWeights(int[] nearestIndices, int k, Workspace workspace) {
+        double[] weights = workspace.weights(k);
+        workspace.solver.setTolerance(solverTolerance);
+        if (warmStart)
+            workspace.solver.warmStart(nearestIndices, k, weights);
+        return weights;
+    }
+
+    protected void recordSolve(int[] nearestIndices, int k, double[] weights, Workspace workspace) {
+        if (warmStart)
+            workspace.solver.rememberSolution(nearestIndices, k, weights);
+        solveCount.increment();
+        solverSweeps.add(workspace.solver.sweeps());
+        if (!workspace.solver.lastConverged())
+            unconvergedSolves.increment();
+        ImputeMetrics.solved(workspace.solver.sweeps(), workspace.solver.lastConverged());
+    }
+
+    protected int[] calculateKNN(double[] query, int[] completeIndices, PatternCache.Projection projection, int k,
+                                 Workspace workspace) throws Exception {
         if (nnStrategy == NNStrategy.BruteForce) {
-            // Calculate distances.
-            int numInstances = completeData.numInstances();
-            double[] distances = new double[numInstances];
-            for (int i = 0; i < numInstances; ++i) {
-                distances[i] = distance(completeData.get(i), instance, completeIndices);
-            }
-            // Sort top-K nearest neighbours within O(N) time efficiently.
-            return Helper.getLeastIndices(distances, k);
+            // Calculate distances and select the top-K nearest neighbours in one pass.
+            int numInstances = features.numRows();
+            BoundedMaxHeap heap = workspace.heap(k);
+            if (vectorizedDistance) {
+                double[] distances = workspace.distances();
+                for (int from = 0; from < numInstances; from += DISTANCE_BLOCK) {
+                    int to = Math.min(numInstances, from + DISTANCE_BLOCK);
+                    features.columnL1Distances(query, completeIndices, from, to, distances);
+                    for (int i = from; i < to; ++i) {
+                        heap.offer(i, distances[i - from]);
+                    }
+                }
+            } else if (projection != null) {
+                double[] projectedQuery = workspace.projectedQuery = projection.project(query, workspace.projectedQuery);
+                for (int i = 0; i < numInstances; ++i) {
+                    heap.offer(i, projection.l1Distance(i, projectedQuery));
+                }
+            } else {
+                for (int i = 0; i < numInstances; ++i) {
+                    heap.offer(i, features.l1Distance(i, query, completeIndices));
+                }
+            }
+            return heap.drainSortedIndices();
+        } else if (nnStrategy == NNStrategy.Tree) {
+            // Exact search with pruning on the cared attributes.
+            BoundedMaxHeap heap = workspace.heap(k);
+            tree.search(query, completeIndices, heap);
+            return heap.drainSortedIndices();
+        } else if (nnStrategy == NNStrategy.HNSW) {
+            // Approximate search on the navigable small world graph.
+            BoundedMaxHeap heap = workspace.heap(k);
+            hnsw.search(query, completeIndices, heap);
+            if (heap.size() == 0)
+                throw new Exception("Expected get " + k + " neighbors but got 0");
+            return heap.drainSortedIndices();
         } else {
-            // Approximate version.
-            NeighborList nl = graph.fastSearch(instance, k, speedup);
+            // Approximate version. The fast search restarts from random nodes of an unseeded generator, so it is not
+            // reproducible.
+            NeighborList nl = graph.fastSearch(new GraphPoint(query, 0, -1), k, speedup);
             if (nl.size() != k) { // Adapt k if necessary.
                 if (nl.size() > 0)
                     k = nl.size();
@@ -286,7 +1050,7 @@ public class UniformLLR extends AbstractClassifier {
             Iterator<Neighbor> itr = nl.iterator();
             while (itr.hasNext()) {
                 nb = itr.next();
-                indices[i] = Integer.parseInt(nb.node.id);
+                indices[i] = ((GraphPoint) nb.node.value).row;
                 ++i;
             }
             return indices;
@@ -314,86 +1078,86 @@ public class UniformLLR extends AbstractClassifier {
         return result;
     }
 
-    protected static double distance(Instance a, Instance b, List<Integer> caredIndices) {
-        double d = 0;
-        double va, vb;
-        if (caredIndices == null) {
-            for (int i=0; i<a.numAttributes(); ++i) {
-                va = a.value(i);
-                vb = b.value(i);
-                d += Math.sqrt((va-vb)*(va-vb));
-            }
-        } else {
-            for (int i: caredIndices) {
-                va = a.value(i);
-                vb = b.value(i);
-                d += Math.sqrt((va-vb)*(va-vb));
-            }
-        }
-        return d;
-    }
-
     public static double[] smoBased1dLLRSolver(double[][] A, double[] b) {
         Helper.checkIntEqual(A.length, b.length);
-        int k = A[0].length;
+        int d = A.length, k = A[0].length;
+        return smoBased1dLLRSolver(A, b, d, k, new SolverWorkspace(d, k), new double[k]);
+    }
+
+    /**
+     * Solves the LLR QP problem with the 1-d SMO method without allocating.
+     * @param A the d x k neighbour matrix, whose leading d rows and k columns are used.
+     * @param b the query vector, whose leading d values are used.
+     * @param d the dimension of the problem.
+     * @param k the number of neighbours.
+     * @param workspace the reusable buffers of the solver.
+     * @param w the output weights, whose leading k values are written. They start uniform, or from the weights
+     *          seeded by {@link SolverWorkspace#warmStart(int[], int, double[])}.
+     * @return w.
+     */
+    public static double[] smoBased1dLLRSolver(double[][] A, double[] b, int d, int k, SolverWorkspace workspace,
+                                               double[] w) {
+        workspace.check(A, b, d, k, w);
         double EPSILON = 1e-4;
         int MAX_ITR = 100;
 
         // Initialization.
-        double[] w = new double[k];
-        for (int i=0; i<k; ++i) w[i] = 1.0/k;
-        double[][] At = matTranspose(A);
-        double[][] AtA = matMultiply(At, A);
-        double[] q = diagonal(AtA);
-        double[] c = vecSub(matMultiply(A, w), b);
-        double[] alpha = matMultiply(At, c);
-        double[] cnst = null;// Need be initialized in each iteration.
+        workspace.initialWeights(k, w);
+        workspace.prepare(A, b, d, k, w);
+        double[][] At = workspace.At;
+        double[][] AtA = workspace.AtA;
+        double[] q = workspace.q;
+        double[] c = workspace.c;
+        double[] alpha = workspace.alpha;
+        double[] cnst = workspace.cnst;
+        double residual = workspace.residual(d);
 
         // Iterations.
-//        double sum0 = 0.0;
-//        for (double x: vecSub(matMultiply(A, w), b)) {
-//            //System.out.printf("%5.3f,", x);
-//            sum0 += Math.abs(x);
-//        }
-//        System.out.printf("Itr: %04d, %8.6f\n", 0, sum0);
-
-        double delta = 0.0, nwi;
-        for (int itr=0; itr<MAX_ITR; ++itr) {
+        double delta, nwi, prod;
+        int itr;
+        for (itr=0; itr<MAX_ITR; ++itr) {
             boolean hasBreak = false;
             for (int i = 0; i < k; ++i) {
                 if (Math.abs(alpha[i]) > EPSILON && Math.abs(w[i]) > EPSILON) {
                     hasBreak = true;
-                    cnst = vecSub(c, At[i], w[i], cnst); // Update the const part of the 1-d optimization problem.
-                    nwi = -dotProd(At[i], cnst)/q[i]; // Update the solution vector.
+                    double[] Ati = At[i];
+                    // Update the const part of the 1-d optimization problem.
+                    System.arraycopy(c, 0, cnst, 0, d);
+                    DenseMatrix.axpy(d, -w[i], Ati, 0, cnst, 0);
+                    prod = DenseMatrix.dot(Ati, 0, cnst, 0, d);
+                    nwi = -prod/q[i]; // Update the solution vector.
                     if (nwi<0) nwi=0;
-                    //if (nwi>1) nwi=1.0;
                     delta = nwi - w[i];
                     w[i] = nwi;
-                    c = vecAdd(c, At[i], delta, c);
-                    alpha = vecAdd(alpha, AtA[i], delta, alpha);
+                    DenseMatrix.axpy(d, delta, Ati, 0, c, 0);
+                    DenseMatrix.axpy(k, delta, AtA[i], 0, alpha, 0);
                 }
             }
 
-            // Display the partial results.
-//            double[] diff = vecSub(matMultiply(A, w), b);
-//            double sum = 0.0;
-//            for (double x: diff) {
-//                //System.out.printf("%5.3f,", x);
-//                sum += Math.abs(x);
-//            }
-//            System.out.printf("Itr: %04d, %8.6f\n", itr, sum);
-
             // Optimized.
-            if (!hasBreak)
+            double previous = residual;
+            residual = workspace.residual(d);
+            if (!hasBreak || workspace.converged(previous, residual))
                 break;
         }
+        workspace.countSweeps(Math.min(itr+1, MAX_ITR), itr < MAX_ITR);
 
         return w;
     }
 
     public static double[] smoBased2dLLRSolver(double[][] A, double[] b) {
         Helper.checkIntEqual(A.length, b.length);
-        int k = A[0].length;
+        int d = A.length, k = A[0].length;
+        return smoBased2dLLRSolver(A, b, d, k, new SolverWorkspace(d, k), new double[k]);
+    }
+
+    /**
+     * Solves the LLR QP problem with the 2-d SMO method without allocating. The arguments are the same as
+     * {@link #smoBased1dLLRSolver(double[][], double[], int, int, SolverWorkspace, double[])}.
+     */
+    public static double[] smoBased2dLLRSolver(double[][] A, double[] b, int d, int k, SolverWorkspace workspace,
+                                               double[] w) {
+        workspace.check(A, b, d, k, w);
         if (k<2) {
             throw new IllegalArgumentException("The k of QP problem must be at least 2.");
         }
@@ -401,39 +1165,193 @@ public class UniformLLR extends AbstractClassifier {
         int MAX_ITR = 100;
 
         // Initialization.
-        double[] w = new double[k];
-        for (int i=0; i<k; ++i) w[i] = 1.0/k;
-        double[][] At = matTranspose(A);
-        double[][] AtA = matMultiply(At, A);
-        double[] q = diagonal(AtA);
-        double[] c = vecSub(matMultiply(A, w), b);
-        double[] alpha = matMultiply(At, c);
-        double[] cnst = null;// Need be initialized in each iteration.
+        boolean seeded = workspace.initialWeights(k, w);
+        workspace.prepare(A, b, d, k, w);
+        double[][] At = workspace.At;
+        double[][] AtA = workspace.AtA;
+        double[] c = workspace.c;
+        double[] alpha = workspace.alpha;
+        double[] Ai_j = workspace.Ai_j;
+        double residual = workspace.residual(d);
+
+        double beta = 0.0, nwi, nwj, bound, prod, norm;
+        double nzSum = 1.0, nzCount = k;
+        if (seeded) { // Count the non-zero weights of the warm start.
+            nzSum = 0.0;
+            nzCount = 0;
+            for (int i=0; i<k; ++i) {
+                if (Math.abs(w[i]) > EPSILON) {
+                    ++nzCount;
+                    nzSum += w[i];
+                }
+            }
+        }
+        Random r = workspace.random;
+        r.setSeed(SMO_2D_SEED); // Seeded to make the solution reproducible.
+        int itr;
+        for (itr=0; itr<MAX_ITR; ++itr) {
+            boolean hasBreak = false;
+            for (int i = 0; i < k; ++i) {
+                if (Math.abs(alpha[i]) > EPSILON && Math.abs(w[i]) > EPSILON) {
+                    int j = i;
+                    while (j==i) j = r.nextInt(k);
+                    hasBreak = true;
+
+                    bound = w[i]+w[j];
+                    double[] Ati = At[i], Atj = At[j];
+                    // Update the const part of the 2-d optimization problem.
+                    for (int m=0; m<d; ++m)
+                        Ai_j[m] = Ati[m]-Atj[m];
+                    norm = DenseMatrix.dot(Ai_j, 0, Ai_j, 0, d);
+                    prod = DenseMatrix.dot(Ai_j, 0, c, 0, d)-w[i]*norm;
+
+                    nwi = -prod/norm; // Update the solution vector.
+                    if (nwi<0) nwi=0;
+                    if (nwi>bound) nwi=bound;
+                    nwj = bound-nwi;
+                    if (Math.abs(w[i]) > EPSILON) {
+                        --nzCount;
+                        nzSum -= w[i];
+                    }
+                    if (Math.abs(w[j]) > EPSILON) {
+                        --nzCount;
+                        nzSum -= w[j];
+                    }
+                    if (Math.abs(nwi) > EPSILON) {
+                        ++nzCount;
+                        nzSum += nwi;
+                    }
+                    if (Math.abs(nwj) > EPSILON) {
+                        ++nzCount;
+                        nzSum += nwj;
+                    }
+                    if (nzCount-EPSILON < 0) { // The problem has been optimized.
+                        hasBreak = false;
+                        break;
+                    }
+
+                    double di = nwi-w[i], dj = nwj-w[j], shift = nzSum/nzCount-beta;
+                    DenseMatrix.axpy(d, di, Ai_j, 0, c, 0);
+                    double[] AtAi = AtA[i], AtAj = AtA[j];
+                    for (int m=0; m<k; ++m)
+                        alpha[m] = alpha[m]+AtAi[m]*di-AtAj[m]*dj-shift;
+
+                    w[i] = nwi;
+                    w[j] = nwj;
+                    beta = nzSum/nzCount;
+                }
+            }
+
+            // Optimized.
+            double previous = residual;
+            residual = workspace.residual(d);
+            if (!hasBreak || workspace.converged(previous, residual))
+                break;
+        }
+        workspace.countSweeps(Math.min(itr+1, MAX_ITR), itr < MAX_ITR);
+
+        return w;
+    }
+
+    /**
+     * Solves the LLR QP problem with the 1-d SMO method on its Gram form: the gradient is alpha=Gw-Atb and a
+     * coordinate step is w_i-alpha_i/G_ii, so an iteration costs O(k) whatever the dimension is.
+     * @param G the k x k Gram matrix At*A, whose leading k rows and columns are used.
+     * @param Atb the vector At*b.
+     * @param btb the squared norm b'b, with which the squared residual |Aw-b|^2 is tracked.
+     * @param k the number of neighbours.
+     * @param workspace the reusable buffers of the solver.
+     * @param w the output weights, whose leading k values are written.
+     * @return w.
+     */
+    public static double[] gramBased1dLLRSolver(double[][] G, double[] Atb, double btb, int k,
+                                                SolverWorkspace workspace, double[] w) {
+        workspace.checkGram(G, Atb, k, w);
+        double EPSILON = 1e-4;
+        int MAX_ITR = 100;
+
+        // Initialization.
+        workspace.initialWeights(k, w);
+        double[] alpha = workspace.gramGradient(G, Atb, k, w);
+        double residual = workspace.gramResidual(Atb, btb, k, w);
 
         // Iterations.
-//        double[] diff = vecSub(matMultiply(A, w), b);
-//        double sum1 = 0.0, sum2=0;
-//        for (int i=0; i<k; ++i) sum1 += w[i];
-//        for (int i=0; i<b.length; ++i) sum2 += diff[i]*diff[i];
-//        System.out.printf("Itr: %04d, %8.6f, %8.6f\n", 0, Math.sqrt(sum2), sum1);
-
-        double beta = 0.0, nwi, nwj, bound;
-        double[] Ai_j = null;
+        double delta, nwi;
+        int itr;
+        for (itr=0; itr<MAX_ITR; ++itr) {
+            boolean hasBreak = false;
+            double previous = residual;
+            for (int i = 0; i < k; ++i) {
+                if (Math.abs(alpha[i]) > EPSILON && Math.abs(w[i]) > EPSILON && G[i][i] > 0) {
+                    hasBreak = true;
+                    nwi = w[i] - alpha[i]/G[i][i];
+                    if (nwi<0) nwi=0;
+                    delta = nwi - w[i];
+                    w[i] = nwi;
+                    residual += delta*(2*alpha[i] + G[i][i]*delta);
+                    DenseMatrix.axpy(k, delta, G[i], 0, alpha, 0);
+                }
+            }
+
+            // Optimized.
+            if (!hasBreak || workspace.converged(previous, residual))
+                break;
+        }
+        workspace.countSweeps(Math.min(itr+1, MAX_ITR), itr < MAX_ITR);
+
+        return w;
+    }
+
+    /**
+     * Solves the LLR QP problem with the 2-d SMO method on its Gram form. The arguments are the same as
+     * {@link #gramBased1dLLRSolver(double[][], double[], double, int, SolverWorkspace, double[])}.
+     */
+    public static double[] gramBased2dLLRSolver(double[][] G, double[] Atb, double btb, int k,
+                                                SolverWorkspace workspace, double[] w) {
+        workspace.checkGram(G, Atb, k, w);
+        if (k<2) {
+            throw new IllegalArgumentException("The k of QP problem must be at least 2.");
+        }
+        double EPSILON = 1e-4;
+        int MAX_ITR = 100;
+
+        // Initialization. The steps use the exact gradient, while the selection keeps the alpha of the 2-d SMO solver.
+        boolean seeded = workspace.initialWeights(k, w);
+        double[] gradient = workspace.gramGradient(G, Atb, k, w);
+        double[] alpha = workspace.selection;
+        System.arraycopy(gradient, 0, alpha, 0, k);
+        double residual = workspace.gramResidual(Atb, btb, k, w);
+
+        double beta = 0.0, nwi, nwj, bound, norm;
         double nzSum = 1.0, nzCount = k;
-        Random r = new Random();
-        for (int itr=0; itr<MAX_ITR; ++itr) {
+        if (seeded) { // Count the non-zero weights of the warm start.
+            nzSum = 0.0;
+            nzCount = 0;
+            for (int i=0; i<k; ++i) {
+                if (Math.abs(w[i]) > EPSILON) {
+                    ++nzCount;
+                    nzSum += w[i];
+                }
+            }
+        }
+        Random r = workspace.random;
+        r.setSeed(SMO_2D_SEED); // Seeded to make the solution reproducible.
+        int itr;
+        for (itr=0; itr<MAX_ITR; ++itr) {
             boolean hasBreak = false;
+            double previous = residual;
             for (int i = 0; i < k; ++i) {
                 if (Math.abs(alpha[i]) > EPSILON && Math.abs(w[i]) > EPSILON) {
                     int j = i;
                     while (j==i) j = r.nextInt(k);
+                    // |Ai-Aj|^2, which is 0 for duplicated neighbours.
+                    norm = G[i][i] - 2*G[i][j] + G[j][j];
+                    if (!(norm > 0))
+                        continue;
                     hasBreak = true;
 
                     bound = w[i]+w[j];
-                    Ai_j = vecSub(At[i], At[j], Ai_j);
-                    cnst = vecSub(c, Ai_j, w[i], cnst); // Update the const part of the 2-d optimization problem.
-
-                    nwi = -dotProd(Ai_j, cnst)/dotProd(Ai_j, Ai_j); // Update the solution vector.
+                    nwi = w[i] - (gradient[i]-gradient[j])/norm; // Update the solution vector.
                     if (nwi<0) nwi=0;
                     if (nwi>bound) nwi=bound;
                     nwj = bound-nwi;
@@ -458,11 +1376,13 @@ public class UniformLLR extends AbstractClassifier {
                         break;
                     }
 
-                    c = vecAdd(c, Ai_j, nwi-w[i], c);
-                    alpha = vecAdd(alpha, AtA[i], nwi-w[i], alpha);
-                    alpha = vecSub(alpha, AtA[j], nwj-w[j], alpha);
+                    double di = nwi-w[i], dj = nwj-w[j], shift = nzSum/nzCount-beta;
+                    double[] Gi = G[i], Gj = G[j];
+                    residual += 2*(gradient[i]*di + gradient[j]*dj) + G[i][i]*di*di + 2*G[i][j]*di*dj + G[j][j]*dj*dj;
+                    DenseMatrix.axpy(k, di, Gi, 0, gradient, 0);
+                    DenseMatrix.axpy(k, dj, Gj, 0, gradient, 0);
                     for (int m=0; m<k; ++m)
-                        alpha[m] -= (nzSum/nzCount-beta);
+                        alpha[m] = alpha[m]+Gi[m]*di-Gj[m]*dj-shift;
 
                     w[i] = nwi;
                     w[j] = nwj;
@@ -470,28 +1390,135 @@ public class UniformLLR extends AbstractClassifier {
                 }
             }
 
-            // Display the partial results.
-//            double[] diff0 = vecSub(matMultiply(A, w), b);
-//            double sum10 = 0.0, sum20=0;
-//            for (int i=0; i<k; ++i) sum10 += w[i];
-//            for (int i=0; i<b.length; ++i) sum20 += diff0[i]*diff0[i];
-//            System.out.printf("Itr: %04d, %8.6f, %8.6f\n", itr, Math.sqrt(sum20), sum10);
-
             // Optimized.
-            if (!hasBreak)
+            if (!hasBreak || workspace.converged(previous, residual))
+                break;
+        }
+        workspace.countSweeps(Math.min(itr+1, MAX_ITR), itr < MAX_ITR);
+
+        return w;
+    }
+
+    /**
+     * Solves min |Aw-b|^2 s.t. w>=0, sum(w)=1 on its Gram form with the primal active-set method. The solve starts
+     * at the best single neighbour and keeps a set of active neighbours, on whose face it minimizes exactly with a
+     * Newton step. If the face minimizer leaves the simplex, the weights move towards it until the first of them
+     * hits 0, and that neighbour leaves the set. Otherwise the neighbour whose Lagrange multiplier is the most
+     * negative joins the set, until none is. The active set rarely grows beyond d+1 neighbours, so an iteration
+     * costs O(s^3+ks) on s active neighbours, and the solve is deterministic.
+     * @param G the k x k Gram matrix At*A, whose leading k rows and columns are used.
+     * @param Atb the vector At*b.
+     * @param k the number of neighbours.
+     * @param tolerance the tolerance of the multipliers, relative to the largest diagonal of G.
+     * @param maxIterations the iteration budget.
+     * @param workspace the reusable buffers of the solver.
+     * @param w the output weights, whose leading k values are written. A warm start is ignored, as the solve
+     *          starts from a vertex.
+     * @return w.
+     */
+    public static double[] simplexLLRSolver(double[][] G, double[] Atb, int k, double tolerance, int maxIterations,
+                                            SolverWorkspace workspace, double[] w) {
+        workspace.checkGram(G, Atb, k, w);
+        Helper.checkPositive("tolerance", tolerance);
+        Helper.checkPositive("maxIterations", maxIterations);
+
+        // Initialization at the vertex of the smallest objective 0.5G_ii-Atb_i.
+        workspace.initialWeights(k, w);
+        int best = 0;
+        double scale = 0.0;
+        for (int i=0; i<k; ++i) {
+            if (0.5*G[i][i]-Atb[i] < 0.5*G[best][best]-Atb[best])
+                best = i;
+            scale = Math.max(scale, G[i][i]);
+        }
+        Arrays.fill(w, 0, k, 0.0);
+        w[best] = 1.0;
+        int[] active = workspace.support;
+        double[] z = workspace.faceU;
+        double[] gradient = workspace.alpha;
+        active[0] = best;
+        int s = 1;
+        double threshold = tolerance*scale;
+
+        // Iterations.
+        int itr;
+        boolean converged = false;
+        for (itr=0; itr<maxIterations && !converged; ++itr) {
+            if (!workspace.faceMinimizer(G, Atb, active, s)) {
+                converged = true; // The face is degenerate beyond the ridge, so no step improves.
                 break;
+            }
+            double length = 1.0;
+            for (int a=0; a<s; ++a) {
+                double wa = w[active[a]];
+                if (z[a] < 0 && wa/(wa - z[a]) < length)
+                    length = wa/(wa - z[a]);
+            }
+            for (int a=0; a<s; ++a) {
+                int i = active[a];
+                double wa = w[i];
+                w[i] = z[a] < 0 && wa/(wa - z[a]) == length ? 0.0 : wa + length*(z[a] - wa);
+            }
+            if (length < 1.0) { // Blocked, the neighbours at 0 leave the active set.
+                int kept = 0;
+                for (int a=0; a<s; ++a) {
+                    if (w[active[a]] > 0)
+                        active[kept++] = active[a];
+                }
+                if (length == 0 && kept == s - 1) { // The joining neighbour left at once, which is a stall.
+                    converged = true;
+                }
+                s = kept;
+                continue;
+            }
+
+            // At the face minimizer, the multiplier of neighbour i is gradient_i-mu, where mu=w'gradient.
+            double mu = 0.0;
+            for (int i=0; i<k; ++i) {
+                double[] Gi = G[i];
+                double sum = -Atb[i];
+                for (int a=0; a<s; ++a)
+                    sum += Gi[active[a]]*w[active[a]];
+                gradient[i] = sum;
+                mu += w[i]*sum;
+            }
+            int joining = -1;
+            double most = -threshold;
+            for (int i=0; i<k; ++i) {
+                if (w[i] == 0 && gradient[i] - mu < most) {
+                    most = gradient[i] - mu;
+                    joining = i;
+                }
+            }
+            if (joining < 0)
+                converged = true;
+            else
+                active[s++] = joining;
         }
+        workspace.countSweeps(itr, converged);
 
+        double sum = 0.0; // Clears the rounding of the sum.
+        for (int i=0; i<k; ++i)
+            sum += w[i];
+        for (int i=0; i<k; ++i)
+            w[i] /= sum;
         return w;
     }
 
+    /**
+     * Solves the LLR QP problem with JOptimizer, as the reference of the faster solvers.
+     * It does not throw if JOptimizer fails, e.g. on a singular or badly scaled problem, but silently returns the
+     * uniform weights 1/k instead, so the caller cannot tell a failure from an optimum from the result alone. The
+     * only trace of a failure is the {@link ImputeMetrics.Counter#UnconvergedSolves} counter.
+     * @return the optimal weights, or the uniform weights if JOptimizer fails.
+     */
     public static double[] slowSolver(double[][] A, double[] b) {
         int k = A[0].length;
         int d = A.length;
-        double[][] At = matTranspose(A);
-        double[][] P = matMultiply(At, A);
-        double[] Q = matMultiply(At, b);
-        for (int i=0; i<d; ++i)Q[i] = -Q[i]; // Since we are optimizing |Ax-b|
+        DenseMatrix dense = DenseMatrix.of(A);
+        double[][] P = dense.transposeMultiply(dense).toArray();
+        double[] Q = dense.transposeMultiply(b);
+        for (int i=0; i<k; ++i) Q[i] = -Q[i]; // Since we are optimizing |Ax-b|
         double[] initW = new double[k];
         for (int i=0; i<k; ++i) initW[i] = 1.0/k;
 
@@ -513,9 +1540,9 @@ public class UniformLLR extends AbstractClassifier {
         JOptimizer opt = new JOptimizer();
         opt.setOptimizationRequest(or);
         try {
-            int retCode = opt.optimize();
+            opt.optimize();
         } catch (Exception e) {
-            System.out.println("Error occurs while optimizing. Details: " + e.getMessage());
+            ImputeMetrics.add(ImputeMetrics.Counter.UnconvergedSolves, 1);
             return initW;
         }
         return opt.getOptimizationResponse().getSolution();
@@ -563,23 +1590,14 @@ public class UniformLLR extends AbstractClassifier {
 
     public static double dotProd(double[] a, double[] b) {
         Helper.checkIntEqual(a.length, b.length);
-        double prod = 0.0;
-        for (int i=0; i<a.length; ++i)
-            prod += a[i]*b[i];
-        return prod;
+        return DenseMatrix.dot(a, 0, b, 0, a.length);
     }
 
     public static double[][] matTranspose(double[][] m) {
         Helper.checkNotNull("m", m);
         Helper.checkPositive("rows", m.length);
         Helper.checkPositive("columns", m[0].length);
-        int rows = m.length;
-        int columns = m[0].length;
-        double[][] mt = new double[columns][rows];
-        for (int i=0; i<rows; ++i)
-            for (int j=0; j<columns; ++j)
-                mt[j][i] = m[i][j];
-        return mt;
+        return DenseMatrix.of(m).transpose().toArray();
     }
 
     public static double[][] matMultiply(double[][] a, double[][] b) {
@@ -589,36 +1607,599 @@ public class UniformLLR extends AbstractClassifier {
         Helper.checkNotNull("b", b);
         Helper.checkPositive("b.rows", b.length);
         Helper.checkPositive("b.columns", b[0].length);
+        Helper.checkIntEqual(a[0].length, b.length);
+        return DenseMatrix.of(a).multiply(DenseMatrix.of(b)).toArray();
+    }
 
-        int ra = a.length, ca = a[0].length;
-        int rb = b.length, cb = b[0].length;
-        Helper.checkIntEqual(ca, rb);
-        double[][] prod = new double[ra][cb];
-        for(int i=0; i<ra; ++i) {
-            for (int j=0; j<cb; ++j) {
-                double sum = 0.0;
-                for (int k=0; k<ca; ++k) {
-                    sum += a[i][k]*b[k][j];
+    public static double[] matMultiply(double[][] a, double[] b) {
+        Helper.checkNotNull("a", a);
+        Helper.checkPositive("a.rows", a.length);
+        Helper.checkNotNull("b", b);
+        Helper.checkPositive("b.size", b.length);
+        return DenseMatrix.of(a).multiply(b);
+    }
+
+    /**
+     * The complete/incomplete attribute split shared by instances of the same missing pattern.
+     */
+    protected static class MissingPattern {
+        protected final int[] completeIndices;
+        protected final int[] incompleteIndices;
+        protected final BitSet completeKey;
+        // The projection of the complete attributes if the pattern uses one, set before the rows are reconstructed.
+        protected PatternCache.Projection projection;
+
+        protected MissingPattern(int[] completeIndices, int[] incompleteIndices) {
+            this.completeIndices = completeIndices;
+            this.incompleteIndices = incompleteIndices;
+            this.completeKey = new BitSet();
+            for (int i: completeIndices)
+                completeKey.set(i);
+        }
+    }
+
+    /**
+     * A view of a row in a packed double array, which is the value type of the k-NN graph nodes.
+     * The row is -1 for a query that does not belong to the trained data. A row of a matrix in a compact format has
+     * no double array and is read through the matrix.
+     */
+    protected static final class GraphPoint implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        protected final double[] data;
+        protected final FeatureMatrix features;
+        protected final int offset;
+        protected final int row;
+
+        protected GraphPoint(double[] data, int offset, int row) {
+            this.data = data;
+            this.features = null;
+            this.offset = offset;
+            this.row = row;
+        }
+
+        protected GraphPoint(FeatureMatrix features, int row) {
+            this.data = features.hasValues() ? features.values() : null;
+            this.features = features;
+            this.offset = features.offset(row);
+            this.row = row;
+        }
+    }
+
+    /**
+     * Reconstructs a range of the flattened incomplete instances, splitting it among the fork-join workers.
+     */
+    protected interface IndexAction {
+        void apply(int i, Workspace workspace) throws Exception;
+    }
+
+    protected static class ReconstructTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        protected final int from;
+        protected final int to;
+        protected final ThreadLocal<Workspace> workspaces;
+        protected final IndexAction action;
+
+        protected ReconstructTask(int from, int to, ThreadLocal<Workspace> workspaces, IndexAction action) {
+            this.from = from;
+            this.to = to;
+            this.workspaces = workspaces;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_GRAIN) {
+                Workspace workspace = workspaces.get();
+                for (int i=from; i<to; ++i) {
+                    startChunk(i, workspace);
+                    try {
+                        action.apply(i, workspace);
+                    } catch (Exception e) {
+                        throw new ReconstructException(e);
+                    }
                 }
-                prod[i][j] = sum;
+            } else {
+                // Split at a chunk boundary, see startChunk.
+                int mid = from + Math.max(1, (to - from) / PARALLEL_GRAIN / 2) * PARALLEL_GRAIN;
+                invokeAll(new ReconstructTask(from, mid, workspaces, action),
+                        new ReconstructTask(mid, to, workspaces, action));
             }
         }
-        return prod;
     }
 
-    public static double[] matMultiply(double[][] a, double[] b) {
-        Helper.checkNotNull("b", b);
-        Helper.checkPositive("b.size", b.length);
+    /**
+     * The key of a neighbour list, which is compared by its ids in order.
+     */
+    protected static final class NeighbourKey {
+        protected final int[] ids;
+        protected final int hash;
+
+        protected NeighbourKey(int[] ids) {
+            this.ids = ids;
+            this.hash = Arrays.hashCode(ids);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof NeighbourKey && Arrays.equals(ids, ((NeighbourKey) o).ids);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Carries a checked reconstruction failure out of the fork-join workers.
+     */
+    protected static class ReconstructException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        protected ReconstructException(Exception cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized Exception getCause() {
+            return (Exception) super.getCause();
+        }
+    }
+
+    /**
+     * Reusable buffers of the SMO based LLR solvers. The buffers only grow, so that once sized for the largest
+     * (d, k) seen, solving does not allocate. A workspace must not be shared between threads.
+     */
+    public static class SolverWorkspace {
+        protected int capacityD;
+        protected int capacityK;
+        protected double[][] At;
+        protected double[][] AtA;
+        protected double[] q;
+        protected double[] c;
+        protected double[] alpha;
+        protected double[] cnst;
+        protected double[] Ai_j;
+        protected double[] Atb;
+        protected double[] selection;
+        protected double[][] face;
+        protected int[] support;
+        protected double[] faceU;
+        protected double[] faceV;
+        protected final Random random = new Random(SMO_2D_SEED);
+        // The previous solution of a warm start, and an open addressing table from its ids to its positions.
+        protected int[] previousIds;
+        protected double[] previousWeights;
+        protected int[] previousSlots;
+        protected int previousK;
+        protected boolean seeded;
+        protected double tolerance;
+        protected int sweeps;
+        protected boolean lastConverged;
+        protected long totalSweeps;
+        protected long solves;
+
+        public SolverWorkspace() {
+            this(0, 0);
+        }
+
+        public SolverWorkspace(int d, int k) {
+            capacityD = -1;
+            ensureCapacity(d, k);
+        }
+
+        public void ensureCapacity(int d, int k) {
+            if (d <= capacityD && k <= capacityK)
+                return;
+            capacityD = Math.max(d, capacityD);
+            capacityK = Math.max(k, capacityK);
+            At = new double[capacityK][capacityD];
+            AtA = new double[capacityK][capacityK];
+            q = new double[capacityK];
+            alpha = new double[capacityK];
+            c = new double[capacityD];
+            cnst = new double[capacityD];
+            Ai_j = new double[capacityD];
+            Atb = new double[capacityK];
+            selection = new double[capacityK];
+            face = new double[capacityK][capacityK];
+            support = new int[capacityK];
+            faceU = new double[capacityK];
+            faceV = new double[capacityK];
+        }
+
+        /**
+         * Returns the Gram matrix buffer of at least k x k, to be filled by the caller of the Gram solvers.
+         */
+        public double[][] gram(int k) {
+            ensureCapacity(capacityD, k);
+            return AtA;
+        }
+
+        /**
+         * Returns the At*b buffer of at least k values, to be filled by the caller of the Gram solvers.
+         */
+        public double[] atb(int k) {
+            ensureCapacity(capacityD, k);
+            return Atb;
+        }
+
+        /**
+         * Sets the relative tolerance of the solvers: a solve stops once a sweep reduces the squared residual
+         * |Aw-b|^2 by no more than tolerance times the residual. 0, the default, runs until the weights stop moving
+         * or the sweep limit is hit.
+         */
+        public void setTolerance(double tolerance) {
+            Helper.checkNotNegative("tolerance", tolerance);
+            this.tolerance = tolerance;
+        }
+
+        public double tolerance() {
+            return tolerance;
+        }
+
+        /**
+         * Returns the number of sweeps of the last solve.
+         */
+        public int sweeps() {
+            return sweeps;
+        }
+
+        /**
+         * Returns whether the last solve stopped before its sweep budget ran out.
+         */
+        public boolean lastConverged() {
+            return lastConverged;
+        }
+
+        public long totalSweeps() {
+            return totalSweeps;
+        }
+
+        public long solves() {
+            return solves;
+        }
+
+        /**
+         * Remembers a solution to warm start the next solves with.
+         * @param ids the ids of the k neighbours.
+         * @param k the number of neighbours.
+         * @param w the weights of the neighbours.
+         */
+        public void rememberSolution(int[] ids, int k, double[] w) {
+            if (previousIds == null || previousIds.length < k) {
+                previousIds = new int[k];
+                previousWeights = new double[k];
+                previousSlots = new int[Integer.highestOneBit(Math.max(1, 2*k-1)) << 1];
+            }
+            System.arraycopy(ids, 0, previousIds, 0, k);
+            System.arraycopy(w, 0, previousWeights, 0, k);
+            previousK = k;
+            Arrays.fill(previousSlots, -1);
+            int mask = previousSlots.length - 1;
+            for (int j=0; j<k; ++j) {
+                int slot = slot(ids[j]) & mask;
+                while (previousSlots[slot] >= 0)
+                    slot = (slot + 1) & mask;
+                previousSlots[slot] = j;
+            }
+        }
+
+        /**
+         * Forgets the remembered solution, so that the next solve starts from uniform weights.
+         */
+        public void forgetSolution() {
+            previousK = 0;
+        }
+
+        /**
+         * Seeds the next solve with the remembered solution mapped onto the given neighbours by id. The weights of
+         * the new neighbours start from 0 and a share of WARM_START_MIX is spread uniformly, since the SMO solvers
+         * never pick a zero weight for a coordinate step.
+         * @param ids the ids of the k neighbours of the next solve.
+         * @param k the number of neighbours.
+         * @param w the weights buffer to be passed to the next solve.
+         * @return whether the neighbours share any weight with the remembered solution. If not, the next solve
+         * starts from uniform weights.
+         */
+        public boolean warmStart(int[] ids, int k, double[] w) {
+            seeded = false;
+            if (previousK == 0)
+                return false;
+            double shared = 0.0;
+            for (int j=0; j<k; ++j) {
+                int p = previousIndex(ids[j]);
+                w[j] = p < 0 ? 0.0 : previousWeights[p];
+                shared += w[j];
+            }
+            if (!(shared > 0))
+                return false;
+            double scale = (1.0-WARM_START_MIX)/shared, floor = WARM_START_MIX/k;
+            for (int j=0; j<k; ++j)
+                w[j] = w[j]*scale + floor;
+            seeded = true;
+            return true;
+        }
+
+        protected int previousIndex(int id) {
+            int mask = previousSlots.length - 1;
+            for (int slot = slot(id) & mask; previousSlots[slot] >= 0; slot = (slot + 1) & mask) {
+                if (previousIds[previousSlots[slot]] == id)
+                    return previousSlots[slot];
+            }
+            return -1;
+        }
+
+        protected static int slot(int id) {
+            int h = id * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+
+        /**
+         * Sets the initial weights of a solve: the seeded ones after {@link #warmStart(int[], int, double[])},
+         * uniform otherwise.
+         * @return whether the weights were seeded.
+         */
+        protected boolean initialWeights(int k, double[] w) {
+            boolean wasSeeded = seeded;
+            seeded = false;
+            if (!wasSeeded) {
+                for (int i=0; i<k; ++i) w[i] = 1.0/k;
+            }
+            return wasSeeded;
+        }
+
+        /**
+         * Computes the minimizer of 0.5w'Gw-Atb'w s.t. sum(w)=1 over the active neighbours into faceU. It solves
+         * (G_SS+rI)w=Atb_S+mu, where mu is set by the sum, with a tiny ridge r that keeps the Cholesky factorization
+         * defined on rank deficient faces, e.g. of duplicated neighbours.
+         * @return false if the face could not be factorized.
+         */
+        protected boolean faceMinimizer(double[][] G, double[] Atb, int[] active, int s) {
+            double trace = 0.0;
+            for (int a=0; a<s; ++a)
+                trace += G[active[a]][active[a]];
+            double ridge = SIMPLEX_RIDGE*trace/s + Double.MIN_NORMAL;
+            for (int a=0; a<s; ++a) {
+                double[] Ga = G[active[a]];
+                for (int b=0; b<=a; ++b)
+                    face[a][b] = Ga[active[b]];
+                face[a][a] += ridge;
+                faceU[a] = Atb[active[a]];
+                faceV[a] = 1.0;
+            }
+            if (!cholesky(face, s))
+                return false;
+            choleskySolve(face, s, faceU);
+            choleskySolve(face, s, faceV);
+            double sumU = 0.0, sumV = 0.0;
+            for (int a=0; a<s; ++a) {
+                sumU += faceU[a];
+                sumV += faceV[a];
+            }
+            if (!(sumV > 0))
+                return false;
+            double mu = (1.0 - sumU)/sumV;
+            for (int a=0; a<s; ++a)
+                faceU[a] += mu*faceV[a];
+            return true;
+        }
+
+        /**
+         * Factorizes the leading n x n block of a symmetric matrix in place into its lower Cholesky factor, reading
+         * the lower triangle only.
+         * @return false if the matrix is not positive definite.
+         */
+        protected static boolean cholesky(double[][] m, int n) {
+            for (int j=0; j<n; ++j) {
+                double[] mj = m[j];
+                double diagonal = mj[j] - DenseMatrix.dot(mj, 0, mj, 0, j);
+                if (!(diagonal > 0))
+                    return false;
+                mj[j] = Math.sqrt(diagonal);
+                for (int i=j+1; i<n; ++i) {
+                    double[] mi = m[i];
+                    mi[j] = (mi[j] - DenseMatrix.dot(mi, 0, mj, 0, j))/mj[j];
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Solves LL'x=b in place with the factor of {@link #cholesky(double[][], int)}.
+         */
+        protected static void choleskySolve(double[][] l, int n, double[] b) {
+            for (int i=0; i<n; ++i)
+                b[i] = (b[i] - DenseMatrix.dot(l[i], 0, b, 0, i))/l[i][i];
+            for (int i=n-1; i>=0; --i) {
+                double sum = b[i];
+                for (int j=i+1; j<n; ++j)
+                    sum -= l[j][i]*b[j];
+                b[i] = sum/l[i][i];
+            }
+        }
+
+        protected boolean converged(double previous, double residual) {
+            return tolerance > 0 && previous - residual <= tolerance * Math.max(residual, 0.0);
+        }
+
+        /**
+         * Returns the squared residual |c|^2 of the explicit solvers, if a tolerance is set.
+         */
+        protected double residual(int d) {
+            return tolerance > 0 ? DenseMatrix.dot(c, 0, c, 0, d) : 0.0;
+        }
+
+        /**
+         * Returns the squared residual w'Gw-2w'Atb+b'b of the Gram solvers, given the gradient in the alpha buffer.
+         */
+        protected double gramResidual(double[] Atb, double btb, int k, double[] w) {
+            return DenseMatrix.dot(w, 0, alpha, 0, k) - DenseMatrix.dot(w, 0, Atb, 0, k) + btb;
+        }
+
+        protected void countSweeps(int sweeps, boolean converged) {
+            this.sweeps = sweeps;
+            this.lastConverged = converged;
+            totalSweeps += sweeps;
+            ++solves;
+        }
+
+        protected void checkGram(double[][] G, double[] Atb, int k, double[] w) {
+            Helper.checkPositive("k", k);
+            if (G.length < k || G[0].length < k || Atb.length < k || w.length < k) {
+                throw new IllegalArgumentException("Expected a Gram problem of at least " + k + " x " + k);
+            }
+            ensureCapacity(capacityD, k);
+        }
 
-        double[][] b2 = new double[b.length][1];
-        for(int i=0; i<b.length; ++i)
-            b2[i][0] = b[i];
+        /**
+         * Computes the gradient alpha=Gw-Atb, i.e. At(Aw-b), into the alpha buffer.
+         */
+        protected double[] gramGradient(double[][] G, double[] Atb, int k, double[] w) {
+            for (int i=0; i<k; ++i)
+                alpha[i] = DenseMatrix.dot(G[i], 0, w, 0, k)-Atb[i];
+            return alpha;
+        }
+
+        /**
+         * Checks the problem sizes once, so that the solver loops run without checking.
+         */
+        protected void check(double[][] A, double[] b, int d, int k, double[] w) {
+            Helper.checkPositive("d", d);
+            Helper.checkPositive("k", k);
+            if (A.length < d || A[0].length < k || b.length < d || w.length < k) {
+                throw new IllegalArgumentException("Expected a problem of at least " + d + " x " + k);
+            }
+            ensureCapacity(d, k);
+        }
 
-        double[][] prod2 = matMultiply(a, b2);
-        double[] prod = new double[prod2.length];
-        for (int i=0; i<prod2.length; ++i)
-            prod[i] = prod2[i][0];
-        return prod;
+        /**
+         * Computes At, AtA, its diagonal q, the residual c=Aw-b and the gradient alpha=At*c. AtA is built from the
+         * contiguous rows of At, so it needs no strided access to A, and is symmetric by construction.
+         */
+        protected void prepare(double[][] A, double[] b, int d, int k, double[] w) {
+            for (int i=0; i<d; ++i) {
+                double[] Ai = A[i];
+                for (int j=0; j<k; ++j)
+                    At[j][i] = Ai[j];
+                c[i] = DenseMatrix.dot(Ai, 0, w, 0, k)-b[i];
+            }
+            for (int i=0; i<k; ++i) {
+                double[] Ati = At[i];
+                double[] AtAi = AtA[i];
+                for (int j=0; j<=i; ++j) {
+                    AtAi[j] = DenseMatrix.dot(Ati, 0, At[j], 0, d);
+                    AtA[j][i] = AtAi[j];
+                }
+                q[i] = AtAi[i];
+                alpha[i] = DenseMatrix.dot(Ati, 0, c, 0, d);
+            }
+        }
     }
-}
 
+    /**
+     * Reusable buffers of the reconstruction QP problem. A workspace must not be shared between threads.
+     */
+    protected static class Workspace {
+        protected double[][] halfP;
+        protected double[] halfQ;
+        protected double[] weights;
+        protected final SolverWorkspace solver = new SolverWorkspace();
+        // Whether the Gram products are cached across the rows reconstructed with this workspace.
+        protected final boolean cachesGram;
+        protected GramCache gramCache;
+        protected int[] offsets;
+        protected double[] gathered;
+        protected double[] query;
+        protected double[] projectedQuery;
+        protected double[] distances;
+        protected BoundedMaxHeap heap;
+
+        protected Workspace() {
+            this(true);
+        }
+
+        protected Workspace(boolean cachesGram) {
+            this.cachesGram = cachesGram;
+        }
+
+        /**
+         * Copies the values of an instance into the query buffer. Missing values are kept as NaN.
+         */
+        protected double[] query(Instance instance) {
+            int n = instance.numAttributes();
+            if (query == null || query.length != n)
+                query = new double[n];
+            for (int i=0; i<n; ++i)
+                query[i] = instance.value(i);
+            return query;
+        }
+
+        protected double[] distances() {
+            if (distances == null)
+                distances = new double[DISTANCE_BLOCK];
+            return distances;
+        }
+
+        protected BoundedMaxHeap heap(int k) {
+            if (heap == null || heap.capacity() != k)
+                heap = new BoundedMaxHeap(k);
+            heap.clear();
+            return heap;
+        }
+
+        /**
+         * Grows the QP buffers to hold at least rows x k. Only the leading rows and columns are meaningful.
+         */
+        protected void ensureCapacity(int rows, int k) {
+            if (halfP == null || halfP.length < rows || halfP[0].length < k) {
+                int capacityRows = halfP == null ? rows : Math.max(rows, halfP.length);
+                int capacityK = halfP == null ? k : Math.max(k, halfP[0].length);
+                halfP = new double[capacityRows][capacityK];
+                halfQ = new double[capacityRows];
+            }
+        }
+
+        protected GramCache gramCache() {
+            if (gramCache == null)
+                gramCache = new GramCache();
+            return gramCache;
+        }
+
+        protected int[] offsets(int k) {
+            if (offsets == null || offsets.length < k)
+                offsets = new int[k];
+            return offsets;
+        }
+
+        protected double[] gathered(int size) {
+            if (gathered == null || gathered.length < size)
+                gathered = new double[size];
+            return gathered;
+        }
+
+        protected double[] projectedQuery(int d) {
+            if (projectedQuery == null || projectedQuery.length != d)
+                projectedQuery = new double[d];
+            return projectedQuery;
+        }
+
+        protected double[] weights(int k) {
+            if (weights == null || weights.length < k)
+                weights = new double[k];
+            return weights;
+        }
+
+        /**
+         * Copies the leading rows x k block of halfP, for the solvers that need exactly sized matrices.
+         */
+        protected double[][] trimmedHalfP(int rows, int k) {
+            double[][] trimmed = new double[rows][];
+            for (int i=0; i<rows; ++i)
+                trimmed[i] = Arrays.copyOf(halfP[i], k);
+            return trimmed;
+        }
+    }
+}
\ No newline at end of file
@@ -1,23 +1,80 @@
 package com.fatty.ml.imputer;
 
 import com.fatty.Helper;
+import com.fatty.ml.ColumnarDataset;
+import com.fatty.ml.ImputeMetrics;
+import com.fatty.ml.UniformLLR;
+import weka.core.Instance;
 import weka.core.Instances;
+import weka.core.converters.AbstractFileSaver;
 import weka.core.converters.ConverterUtils;
+import weka.core.converters.Saver;
+
+import java.io.File;
+import java.util.Random;
 
 /**
  * Created by fatty on 16-8-23.
  */
 public class AbstractImputer implements Imputer {
+    protected static long STREAM_SEED = 20160823L;
+
+    protected int numThreads = 1;
+
+    /**
+     * Sets the number of threads used to impute a data set. Imputers that do not support parallel imputing ignore it.
+     */
+    public void setNumThreads(int numThreads) {
+        Helper.checkPositive("numThreads", numThreads);
+        this.numThreads = numThreads;
+    }
+
+    protected File indexFile;
+
+    /**
+     * Sets the snapshot file of the approximate k-NN graph, so that imputing the same data again skips the graph
+     * build. Imputers that do not build such a graph ignore it.
+     */
+    public void setIndexFile(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    protected int streamChunkSize = 0;
+    protected int streamReferenceSize = 0;
+
+    /**
+     * Makes {@link #impute(String, String, int)} stream the source file in two passes instead of loading it. The
+     * first pass keeps the complete rows, or a reservoir sample of them, as the reference data the model is fitted
+     * on. The second pass transforms the rows chunk by chunk and writes every chunk as soon as it is imputed, so the
+     * peak memory is bounded by the reference data and one chunk rather than by the file. The loader and the saver
+     * are chosen by the file extensions and must be incremental, as the ARFF and CSV ones are. A file in the
+     * {@link ColumnarDataset} format is mapped instead and never streamed. Since the model only sees the complete
+     * rows, the statistics of e.g. MEI could differ slightly from those of the whole file.
+     * @param chunkSize the number of rows imputed at a time, or 0 to load the whole file.
+     * @param referenceSize the maximal number of complete rows kept, or 0 to keep all of them.
+     */
+    public void setStreaming(int chunkSize, int referenceSize) {
+        Helper.checkNotNegative("chunkSize", chunkSize);
+        Helper.checkNotNegative("referenceSize", referenceSize);
+        this.streamChunkSize = chunkSize;
+        this.streamReferenceSize = referenceSize;
+    }
+
     @Override
     public void impute(String srcArffFile, String destArffFile, int classIndex)
             throws IllegalArgumentException, NullPointerException, ImputeException {
         Helper.checkFileExists(srcArffFile);
         Helper.checkNotNullNorEmpty("destArffFile", destArffFile);
+        if (streamChunkSize > 0 && !ColumnarDataset.isColumnar(srcArffFile)
+                && !ColumnarDataset.isColumnar(destArffFile)) {
+            imputeStream(srcArffFile, destArffFile, classIndex);
+            return;
+        }
 
         Instances data;
         // Parses the dataset.
         try {
-            data = ConverterUtils.DataSource.read(srcArffFile);
+            data = ColumnarDataset.load(srcArffFile);
         } catch (Exception e) {
             throw new ImputeException("Error occurs while parsing the source arff file. Details: " + e.getMessage(), e);
         }
@@ -26,14 +83,167 @@ public class AbstractImputer implements Imputer {
         Helper.checkNotNull("missed data set", data);
         // Writes the result.
         try {
-            ConverterUtils.DataSink.write(destArffFile, data);
+            ColumnarDataset.save(destArffFile, data);
         } catch (Exception e) {
             throw new ImputeException("Error occurs while writing the generated arff file. Details: " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Imputes a file in two passes, see {@link #setStreaming(int, int)}.
+     */
+    protected void imputeStream(String srcArffFile, String destArffFile, int classIndex) throws ImputeException {
+        // The first pass collects the reference data.
+        Instances reference;
+        try {
+            ConverterUtils.DataSource source = new ConverterUtils.DataSource(srcArffFile);
+            Instances structure = source.getStructure();
+            Helper.setDataSetClassIndex(structure, classIndex);
+            reference = readReference(source, structure);
+        } catch (Exception e) {
+            throw new ImputeException("Error occurs while parsing the source arff file. Details: " + e.getMessage(), e);
+        }
+        fit(reference, classIndex);
+
+        // The second pass imputes and writes the rows chunk by chunk.
+        try {
+            ConverterUtils.DataSource source = new ConverterUtils.DataSource(srcArffFile);
+            Instances structure = source.getStructure();
+            Helper.setDataSetClassIndex(structure, classIndex);
+            AbstractFileSaver saver = ConverterUtils.getSaverForFile(destArffFile);
+            if (saver == null) {
+                throw new ImputeException("No saver is found for the generated arff file " + destArffFile + ".");
+            }
+            saver.setRetrieval(Saver.INCREMENTAL);
+            saver.setInstances(structure);
+            saver.setFile(new File(destArffFile));
+            Instances chunk = new Instances(structure, streamChunkSize);
+            while (source.hasMoreElements(structure)) {
+                chunk.add(source.nextElement(structure));
+                if (chunk.numInstances() == streamChunkSize) {
+                    writeChunk(saver, transform(chunk));
+                    chunk = new Instances(structure, streamChunkSize);
+                }
+            }
+            if (chunk.numInstances() > 0)
+                writeChunk(saver, transform(chunk));
+            saver.writeIncremental(null);
+        } catch (ImputeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ImputeException("Error occurs while streaming the arff files. Details: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the complete rows of a source, keeping a uniform reservoir sample of them if the reference size is set.
+     */
+    protected Instances readReference(ConverterUtils.DataSource source, Instances structure) throws Exception {
+        Instances reference = new Instances(structure, 0);
+        Random random = new Random(STREAM_SEED);
+        long numComplete = 0;
+        while (source.hasMoreElements(structure)) {
+            Instance instance = source.nextElement(structure);
+            if (instance.hasMissingValue())
+                continue;
+            ++numComplete;
+            if (streamReferenceSize == 0 || reference.numInstances() < streamReferenceSize) {
+                reference.add(instance);
+            } else {
+                long slot = (long) (random.nextDouble() * numComplete);
+                if (slot < streamReferenceSize)
+                    reference.set((int) slot, instance);
+            }
+        }
+        return reference;
+    }
+
+    protected void writeChunk(AbstractFileSaver saver, Instances imputed) throws Exception {
+        Helper.checkNotNull("imputed chunk", imputed);
+        for (Instance instance: imputed)
+            saver.writeIncremental(instance);
+    }
+
+    protected UniformLLR llr;
+    protected Instances fittedData;
+    protected int fittedClassIndex;
+
+    /**
+     * Fits the model of this imputer. The imputers based on {@link UniformLLR} train it on the complete rows. An
+     * imputer that only overrides {@link #impute(Instances, int)} keeps a copy of the data instead, and imputes the
+     * rows to transform together with it, i.e. every {@link #transform(Instances)} imputes all the fitted rows again.
+     */
+    @Override
+    public void fit(Instances instances, int classIndex) throws ImputeException {
+        Helper.checkNotNull("instances", instances);
+        long start = ImputeMetrics.start();
+        try {
+            Helper.setDataSetClassIndex(instances, classIndex);
+            fittedClassIndex = classIndex;
+            llr = fitLLR(instances);
+            fittedData = llr == null ? new Instances(instances) : null;
+        } catch (Exception e) {
+            throw new ImputeException("Error occurs while fitting data set. Details: " + e.getMessage(), e);
+        }
+        ImputeMetrics.stop(ImputeMetrics.Phase.Fit, start);
+    }
+
+    /**
+     * Trains the {@link UniformLLR} this imputer is based on, or returns null if it is not based on one.
+     */
+    protected UniformLLR fitLLR(Instances instances) throws Exception {
+        UniformLLR llr = newLLR();
+        if (llr != null) {
+            llr.setNumThreads(numThreads);
+            llr.buildClassifier(instances);
+        }
+        return llr;
+    }
+
+    /**
+     * Returns a new {@link UniformLLR} configured as this imputer uses it, or null if this imputer is not based on it.
+     */
+    protected UniformLLR newLLR() {
+        return null;
+    }
+
+    @Override
+    public Instances transform(Instances instances) throws ImputeException {
+        Helper.checkNotNull("instances", instances);
+        if (llr == null && fittedData == null) {
+            throw new ImputeException("The imputer is not fitted yet.");
+        }
+        long start = ImputeMetrics.start();
+        try {
+            Instances imputed = new Instances(instances);
+            Helper.setDataSetClassIndex(imputed, fittedClassIndex);
+            ImputeMetrics.stop(ImputeMetrics.Phase.Copy, start);
+            if (llr != null)
+                return llr.imputeAll(imputed);
+            Instances data = new Instances(fittedData);
+            data.addAll(imputed);
+            data = impute(data, fittedClassIndex);
+            Helper.checkNotNull("imputed data set", data);
+            return new Instances(data, fittedData.numInstances(), imputed.numInstances());
+        } catch (ImputeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ImputeException("Error occurs while imputing data set. Details: " + e.getMessage(), e);
+        } finally {
+            ImputeMetrics.stop(ImputeMetrics.Phase.Transform, start);
+        }
+    }
+
+    /**
+     * Imputes a data set by fitting this imputer on it and transforming it, if this imputer is based on
+     * {@link UniformLLR}.
+     */
     @Override
     public Instances impute(Instances instances, int classIndex) throws ImputeException {
-        throw new ImputeException("The impute function is not implemented in abstract class.");
+        if (newLLR() == null) {
+            throw new ImputeException("The impute function is not implemented in abstract class.");
+        }
+        fit(instances, classIndex);
+        return transform(instances);
     }
 }
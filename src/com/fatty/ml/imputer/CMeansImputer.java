@@ -3,7 +3,6 @@ package com.fatty.ml.imputer;
 import com.fatty.Helper;
 import com.fatty.ml.UniformLLR;
 import weka.clusterers.SimpleKMeans;
-import weka.core.Instance;
 import weka.core.Instances;
 import weka.core.Utils;
 
@@ -14,33 +13,28 @@ import java.util.stream.Collectors;
  */
 public class CMeansImputer extends AbstractImputer {
     @Override
-    public Instances impute(Instances instances, int classIndex) throws ImputeException {
-        Helper.checkNotNull("instances", instances);
-        // Do imputing.
-        try {
-            Helper.setDataSetClassIndex(instances, classIndex);
+    protected UniformLLR newLLR() {
+        return new UniformLLR(1, UniformLLR.NNStrategy.BruteForce, UniformLLR.LLRStrategy.Average);
+    }
 
-            // K-means clustering.
-            Instances complete = new Instances(instances, 0);
-            complete.addAll(instances.stream().filter(inst -> !inst.hasMissingValue()).collect(Collectors.toList()));
-            SimpleKMeans kMeans = new SimpleKMeans();
-            kMeans.setOptions(Utils.splitOptions("-N 5")); // 5 centroids in total.
-            complete.setClassIndex(-1);
-            kMeans.buildClusterer(complete);
-            Instances centroids = kMeans.getClusterCentroids();
-            Helper.setDataSetClassIndex(centroids, classIndex);
+    /**
+     * Trains the nearest centroid imputer on the k-means centroids of the complete instances.
+     */
+    @Override
+    protected UniformLLR fitLLR(Instances instances) throws Exception {
+        // K-means clustering.
+        Instances complete = new Instances(instances, 0);
+        complete.addAll(instances.stream().filter(inst -> !inst.hasMissingValue()).collect(Collectors.toList()));
+        SimpleKMeans kMeans = new SimpleKMeans();
+        kMeans.setOptions(Utils.splitOptions("-N 5")); // 5 centroids in total.
+        complete.setClassIndex(-1);
+        kMeans.buildClusterer(complete);
+        Instances centroids = kMeans.getClusterCentroids();
+        Helper.setDataSetClassIndex(centroids, instances.classIndex());
 
-            Instances imputed = new Instances(instances);
-            UniformLLR llr = new UniformLLR(1, UniformLLR.NNStrategy.BruteForce, UniformLLR.LLRStrategy.Average);
-            llr.buildClassifier(centroids);
-            for (Instance line: imputed) {
-                if (line.hasMissingValue()) {
-                    llr.distributionForInstance(line);
-                }
-            }
-            return imputed;
-        } catch (Exception e) {
-            throw new ImputeException("Error occurs while imputing data set. Details: " + e.getMessage(), e);
-        }
+        UniformLLR llr = newLLR();
+        llr.buildClassifier(centroids);
+        llr.setNumThreads(numThreads);
+        return llr;
     }
 }
@@ -9,11 +9,28 @@ import weka.core.Instances;
 public class CopyImputer extends AbstractImputer {
     @Override
     public Instances impute(Instances instances, int classIndex) throws ImputeException {
+        fit(instances, classIndex);
+        return transform(instances);
+    }
+
+    @Override
+    public void fit(Instances instances, int classIndex) throws ImputeException {
         Helper.checkNotNull("instances", instances);
-        // Do imputing.
         try {
             Helper.setDataSetClassIndex(instances, classIndex);
-            return new Instances(instances);
+            fittedClassIndex = classIndex;
+        } catch (Exception e) {
+            throw new ImputeException("Error occurs while fitting data set. Details: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public Instances transform(Instances instances) throws ImputeException {
+        Helper.checkNotNull("instances", instances);
+        try {
+            Instances imputed = new Instances(instances);
+            Helper.setDataSetClassIndex(imputed, fittedClassIndex);
+            return imputed;
         } catch (Exception e) {
             throw new ImputeException("Error occurs while imputing data set. Details: " + e.getMessage(), e);
         }
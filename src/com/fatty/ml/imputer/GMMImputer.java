@@ -12,12 +12,23 @@ import java.util.stream.Collectors;
  * Created by fatty on 16/9/11.
  */
 public class GMMImputer extends AbstractImputer {
+    protected double[] means;
+
     @Override
     public Instances impute(Instances instances, int classIndex) throws ImputeException {
+        fit(instances, classIndex);
+        return transform(instances);
+    }
+
+    /**
+     * Fits a GMM on the complete instances and keeps the mixture mean of every attribute.
+     */
+    @Override
+    public void fit(Instances instances, int classIndex) throws ImputeException {
         Helper.checkNotNull("instances", instances);
-        // Do imputing.
         try {
             Helper.setDataSetClassIndex(instances, classIndex);
+            fittedClassIndex = classIndex;
 
             // GMM clustering.
             Instances complete = new Instances(instances, 0);
@@ -37,13 +48,26 @@ public class GMMImputer extends AbstractImputer {
             }
 //            for (int j=0; j<gmm[0].length; ++j)
 //                avg[j] /= prior.length;
+            means = avg;
+        } catch (Exception e) {
+            throw new ImputeException("Error occurs while fitting data set. Details: " + e.getMessage(), e);
+        }
+    }
 
+    @Override
+    public Instances transform(Instances instances) throws ImputeException {
+        Helper.checkNotNull("instances", instances);
+        if (means == null) {
+            throw new ImputeException("The imputer is not fitted yet.");
+        }
+        try {
             Instances imputed = new Instances(instances);
+            Helper.setDataSetClassIndex(imputed, fittedClassIndex);
             for (Instance line: imputed) {
                 if (line.hasMissingValue()) {
                     for (int j=0; j<line.numAttributes(); ++j) {
                         if (line.isMissing(j) && line.classIndex() != j) {
-                            line.setValue(j, avg[j]);
+                            line.setValue(j, means[j]);
                         }
                     }
                 }
@@ -10,4 +10,19 @@ public interface Imputer {
             throws IllegalArgumentException, NullPointerException, ImputeException;
 
     Instances impute(Instances instances, int classIndex) throws ImputeException;
+
+    /**
+     * Fits the model of the imputer, e.g. the k-NN index, the centroids or the means, on a data set.
+     */
+    void fit(Instances instances, int classIndex) throws ImputeException;
+
+    /**
+     * Imputes the missing values of new rows against the fitted model. The imputers based on
+     * {@link com.fatty.ml.UniformLLR} do so without refitting it, at a cost in the number of new rows. The other
+     * imputers have no model apart from the data: they impute the fitted rows together with the new rows on every
+     * call, so a call costs a full imputation of O(fitted rows) however few rows it transforms.
+     * @param instances the rows, with the same header as the fitted data set.
+     * @return the imputed copy of the rows.
+     */
+    Instances transform(Instances instances) throws ImputeException;
 }
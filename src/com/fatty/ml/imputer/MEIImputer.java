@@ -9,15 +9,45 @@ import weka.filters.unsupervised.attribute.ReplaceMissingValues;
  * Created by fatty on 16/8/21.
  */
 public class MEIImputer extends AbstractImputer {
+    protected ReplaceMissingValues filter;
+
     @Override
     public Instances impute(Instances instances, int classIndex) throws ImputeException {
+        fit(instances, classIndex);
+        return transform(instances);
+    }
+
+    /**
+     * Learns the means and the modes of the attributes by filtering the data set as the first batch.
+     */
+    @Override
+    public void fit(Instances instances, int classIndex) throws ImputeException {
         Helper.checkNotNull("instances", instances);
-        // Do imputing.
         try {
             Helper.setDataSetClassIndex(instances, classIndex);
-            ReplaceMissingValues filter = new ReplaceMissingValues();
+            fittedClassIndex = classIndex;
+            filter = new ReplaceMissingValues();
             filter.setInputFormat(instances);
-            return Filter.useFilter(instances, filter);
+            Filter.useFilter(instances, filter);
+        } catch (Exception e) {
+            throw new ImputeException("Error occurs while fitting data set. Details: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Replaces the missing values by the learnt means and modes, since the filter keeps them after the first batch.
+     */
+    @Override
+    public Instances transform(Instances instances) throws ImputeException {
+        Helper.checkNotNull("instances", instances);
+        if (filter == null) {
+            throw new ImputeException("The imputer is not fitted yet.");
+        }
+        try {
+            Instances data = new Instances(instances, 0);
+            Helper.setDataSetClassIndex(data, fittedClassIndex);
+            data.addAll(instances);
+            return Filter.useFilter(data, filter);
         } catch (Exception e) {
             throw new ImputeException("Error occurs while imputing data set. Details: " + e.getMessage(), e);
         }
@@ -1,9 +1,9 @@
 package com.fatty.ml.misser;
 
 import com.fatty.Helper;
+import com.fatty.ml.ColumnarDataset;
 import weka.core.Instance;
 import weka.core.Instances;
-import weka.core.converters.ConverterUtils;
 import java.util.Random;
 
 /**
@@ -26,6 +26,13 @@ public class KangMisser implements Misser {
         this.rnd = new Random(); // A randomized random generator.
     }
 
+    /**
+     * Reseeds the random generator, so that the same data is missed the same way again.
+     */
+    public void setSeed(long seed) {
+        this.rnd = new Random(seed);
+    }
+
     @Override
     public void miss(String srcArffFile, String destArffFile, double ratio, int classIndex)
             throws IllegalArgumentException, NullPointerException, MissException {
@@ -37,7 +44,7 @@ public class KangMisser implements Misser {
         Instances data;
         // Parses the dataset.
         try {
-            data = ConverterUtils.DataSource.read(srcArffFile);
+            data = ColumnarDataset.load(srcArffFile);
         } catch (Exception e) {
             throw new MissException("Error occurs while parsing the source arff file. Details: " + e.getMessage(), e);
         }
@@ -46,7 +53,7 @@ public class KangMisser implements Misser {
         Helper.checkNotNull("missed data set", data);
         // Writes the result.
         try {
-            ConverterUtils.DataSink.write(destArffFile, data);
+            ColumnarDataset.save(destArffFile, data);
         } catch (Exception e) {
             throw new MissException("Error occurs while writing the generated arff file. Details: " + e.getMessage(), e);
         }
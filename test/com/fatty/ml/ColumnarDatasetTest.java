@@ -0,0 +1,119 @@
+package com.fatty.ml;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a {@link ColumnarDataset} reads back the values and the missing flags it was written with, across
+ * chunks and partial bitmap words.
+ */
+public class ColumnarDatasetTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    protected int chunkRows;
+
+    @Before
+    public void setUp() {
+        // Small chunks, so that a few hundred rows span several of them.
+        chunkRows = ColumnarDataset.CHUNK_ROWS;
+        ColumnarDataset.CHUNK_ROWS = 128;
+    }
+
+    @After
+    public void tearDown() {
+        ColumnarDataset.CHUNK_ROWS = chunkRows;
+    }
+
+    /**
+     * Returns a data set of two numeric attributes and a nominal class, of which a tenth of the values are missing.
+     */
+    protected static Instances data(int numRows, Random random) {
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        attributes.add(new Attribute("x"));
+        attributes.add(new Attribute("y"));
+        attributes.add(new Attribute("class", Arrays.asList("a", "b", "c")));
+        Instances data = new Instances("columnar", attributes, numRows);
+        data.setClassIndex(2);
+        for (int i=0; i<numRows; ++i) {
+            double[] values = {random.nextGaussian(), random.nextDouble() * 1e6, random.nextInt(3)};
+            for (int c=0; c<values.length; ++c) {
+                if (random.nextInt(10) == 0)
+                    values[c] = Utils.missingValue();
+            }
+            data.add(new DenseInstance(1.0, values));
+        }
+        return data;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Random random = new Random(1);
+        for (int numRows: new int[] {0, 1, 63, 64, 65, 128, 300}) {
+            Instances data = data(numRows, random);
+            File file = folder.newFile();
+            ColumnarDataset.write(file, data);
+
+            ColumnarDataset dataset = ColumnarDataset.open(file);
+            assertEquals(numRows, dataset.numRows());
+            assertEquals(data.numAttributes(), dataset.numColumns());
+            assertTrue(dataset.header().equalHeaders(data));
+            assertEquals(data.classIndex(), dataset.header().classIndex());
+            Instances copy = dataset.toInstances();
+            assertEquals(numRows, copy.numInstances());
+            for (int row=0; row<numRows; ++row) {
+                for (int c=0; c<data.numAttributes(); ++c) {
+                    boolean missing = data.get(row).isMissing(c);
+                    assertEquals(missing, dataset.isMissing(row, c));
+                    assertEquals(missing, copy.get(row).isMissing(c));
+                    if (!missing) {
+                        assertEquals(data.get(row).value(c), dataset.value(row, c), 0.0);
+                        assertEquals(data.get(row).value(c), copy.get(row).value(c), 0.0);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testTooFewRows() throws IOException {
+        Instances data = data(10, new Random(2));
+        try (ColumnarDataset.Writer writer = new ColumnarDataset.Writer(folder.newFile(), data, 11)) {
+            for (int row=0; row<10; ++row)
+                writer.add(data.get(row));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testTooManyRows() throws IOException {
+        Instances data = data(10, new Random(3));
+        try (ColumnarDataset.Writer writer = new ColumnarDataset.Writer(folder.newFile(), data, 9)) {
+            for (int row=0; row<10; ++row)
+                writer.add(data.get(row));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotColumnar() throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), new byte[64]);
+        ColumnarDataset.open(file);
+    }
+}
@@ -0,0 +1,78 @@
+package com.fatty.ml;
+
+import com.fatty.BoundedMaxHeap;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.fatty.ml.TestData.caredColumns;
+import static com.fatty.ml.TestData.matrix;
+import static com.fatty.ml.TestData.range;
+import static com.fatty.ml.TestData.recall;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the recall of {@link HNSWIndex} against the exact neighbours of {@link KDTree}.
+ */
+public class HNSWIndexTest {
+    protected static final int K = 10;
+
+    /**
+     * Returns the mean recall of the index over random queries, and checks the returned distances on the way.
+     */
+    protected static double meanRecall(FeatureMatrix features, HNSWIndex index, boolean masked, Random random) {
+        int numColumns = features.numColumns();
+        KDTree tree = new KDTree(features, range(numColumns));
+        int numQueries = 200;
+        double sum = 0.0;
+        for (int q=0; q<numQueries; ++q) {
+            double[] query = new double[numColumns];
+            for (int i=0; i<numColumns; ++i)
+                query[i] = random.nextDouble();
+            int[] cared = masked ? caredColumns(numColumns, random) : range(numColumns);
+            BoundedMaxHeap exact = new BoundedMaxHeap(K);
+            tree.search(query, cared, exact);
+            BoundedMaxHeap approximate = new BoundedMaxHeap(K);
+            index.search(query, cared, approximate);
+            assertEquals(K, approximate.size());
+
+            double[] distances = new double[K];
+            int[] found = approximate.drainSortedIndices(distances);
+            for (int i=0; i<K; ++i) {
+                assertEquals(features.l1Distance(found[i], query, cared), distances[i], 0.0);
+                if (i > 0)
+                    assertTrue(distances[i-1] <= distances[i]);
+            }
+            sum += recall(exact.drainSortedIndices(), found);
+        }
+        return sum / numQueries;
+    }
+
+    @Test
+    public void testSerialBuildRecall() throws InterruptedException {
+        FeatureMatrix features = matrix(3000, 8, new Random(1), 0);
+        HNSWIndex index = new HNSWIndex(features, range(8));
+        index.build(1);
+        assertEquals(3000, index.numNodes());
+        assertTrue(meanRecall(features, index, false, new Random(2)) >= 0.95);
+    }
+
+    @Test
+    public void testParallelBuildRecall() throws InterruptedException {
+        FeatureMatrix features = matrix(3000, 8, new Random(1), 0);
+        HNSWIndex index = new HNSWIndex(features, range(8));
+        index.build(4);
+        assertTrue(meanRecall(features, index, false, new Random(2)) >= 0.95);
+    }
+
+    @Test
+    public void testMaskedQueryRecall() throws InterruptedException {
+        // The graph is linked on all the columns, while the queries compare only some of them.
+        FeatureMatrix features = matrix(3000, 8, new Random(1), 0);
+        HNSWIndex index = new HNSWIndex(features, range(8));
+        index.build(1);
+        index.setEfSearch(200);
+        assertTrue(meanRecall(features, index, true, new Random(3)) >= 0.95);
+    }
+}
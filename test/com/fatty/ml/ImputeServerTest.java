@@ -0,0 +1,109 @@
+package com.fatty.ml;
+
+import com.fatty.ml.imputer.KNNOpt2Imputer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks an {@link ImputeServer} over HTTP on the loopback interface.
+ */
+public class ImputeServerTest {
+    protected static final int NUM_ROWS = 200;
+    protected static final int NUM_COLUMNS = 4;
+
+    protected ImputeServer server;
+
+    /**
+     * Returns a data set whose rows repeat one value t in every column, the last of which is the class. A missing
+     * value is then reconstructed from the other columns of its row.
+     */
+    protected static Instances data() {
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        for (int j=0; j<NUM_COLUMNS; ++j)
+            attributes.add(new Attribute("a" + j));
+        Instances data = new Instances("server", attributes, NUM_ROWS);
+        data.setClassIndex(NUM_COLUMNS - 1);
+        for (int i=0; i<NUM_ROWS; ++i) {
+            double[] values = new double[NUM_COLUMNS];
+            for (int j=0; j<NUM_COLUMNS; ++j)
+                values[j] = (double) i / NUM_ROWS;
+            data.add(new DenseInstance(1.0, values));
+        }
+        return data;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Instances data = data();
+        KNNOpt2Imputer imputer = new KNNOpt2Imputer();
+        imputer.fit(data, NUM_COLUMNS - 1);
+        server = new ImputeServer(imputer, data, 0);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    /**
+     * Sends a request and returns its status, followed by the response body after a newline.
+     */
+    protected String send(String method, String path, String body) throws IOException {
+        URL url = new URL("http://127.0.0.1:" + server.port() + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod(method);
+            if (body != null) {
+                connection.setDoOutput(true);
+                try (OutputStream out = connection.getOutputStream()) {
+                    out.write(body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            int status = connection.getResponseCode();
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            return status + "\n" + ImputeServer.readBody(in);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Test
+    public void testImputesPostedRows() throws Exception {
+        String response = send("POST", "/impute", "0.3,?,0.3,0.3\n0.6,0.6,?,0.6\n");
+        String[] lines = response.split("\n");
+        assertEquals("200", lines[0]);
+        assertEquals(3, lines.length);
+        double[] expected = {0.3, 0.6};
+        for (int r=0; r<expected.length; ++r) {
+            String[] fields = lines[r + 1].split(",");
+            assertEquals(NUM_COLUMNS, fields.length);
+            for (String field: fields)
+                assertEquals(expected[r], Double.parseDouble(field), 1e-3);
+        }
+        assertTrue(server.stats().startsWith("requests=1 rows=2 batches=1"));
+    }
+
+    @Test
+    public void testRejectsBadRequests() throws Exception {
+        assertTrue(send("POST", "/impute", "0.3,?,0.3\n").startsWith("400\nExpected 4 values"));
+        assertTrue(send("POST", "/impute", "0.3,x,0.3,0.3\n").startsWith("400\nInvalid value x"));
+        assertTrue(send("GET", "/impute", null).startsWith("405\n"));
+        assertTrue(server.stats().startsWith("requests=0 rows=0 batches=0"));
+    }
+}
@@ -0,0 +1,142 @@
+package com.fatty.ml;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static com.fatty.ml.TestData.matrix;
+import static com.fatty.ml.TestData.range;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that an {@link IndexSnapshot} reads back what was written, and that {@link UniformLLR} keeps its snapshot
+ * file up to date.
+ */
+public class IndexSnapshotTest {
+    protected static final int NUM_COLUMNS = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Returns a data set of numeric attributes, the last of which is the class, with the rows of a matrix.
+     */
+    protected static Instances data(FeatureMatrix features) {
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        for (int j=0; j<features.numColumns(); ++j)
+            attributes.add(new Attribute("a" + j));
+        Instances data = new Instances("snapshot", attributes, features.numRows());
+        data.setClassIndex(features.numColumns() - 1);
+        for (int i=0; i<features.numRows(); ++i) {
+            double[] values = new double[features.numColumns()];
+            features.row(i, values);
+            data.add(new DenseInstance(1.0, values));
+        }
+        return data;
+    }
+
+    @Test
+    public void testRoundTripWithGraph() throws Exception {
+        FeatureMatrix features = matrix(300, NUM_COLUMNS, new Random(1), 0);
+        Instances header = new Instances(data(features), 0);
+        ParallelNNDescent graph = new ParallelNNDescent(features, range(NUM_COLUMNS), 8);
+        graph.compute(1);
+        File file = folder.newFile();
+        IndexSnapshot.write(file, header, features, graph);
+
+        IndexSnapshot snapshot = IndexSnapshot.read(file);
+        assertTrue(snapshot.header().equalHeaders(header));
+        assertEquals(header.classIndex(), snapshot.header().classIndex());
+        assertEquals(8, snapshot.k());
+        assertArrayEquals(features.values(), snapshot.features().values(), 0.0);
+        assertTrue(snapshot.matches(header, features));
+        ParallelNNDescent restored = snapshot.graph(range(NUM_COLUMNS));
+        assertEquals(features.numRows(), restored.numNodes());
+        for (int v=0; v<features.numRows(); ++v) {
+            assertArrayEquals(graph.neighbors(v), restored.neighbors(v));
+            assertArrayEquals(graph.distances(v), restored.distances(v), 0.0);
+        }
+    }
+
+    @Test
+    public void testRoundTripWithoutGraph() throws Exception {
+        double[] values = matrix(50, NUM_COLUMNS, new Random(2), 0).values();
+        values[7] = Double.NaN;
+        FeatureMatrix features = new FeatureMatrix(50, NUM_COLUMNS, values);
+        Instances header = new Instances(data(features), 0);
+        File file = folder.newFile();
+        IndexSnapshot.write(file, header, features, null);
+
+        IndexSnapshot snapshot = IndexSnapshot.read(file);
+        assertEquals(0, snapshot.k());
+        assertTrue(snapshot.features().isMissing(1, 2));
+        assertTrue(snapshot.matches(header, features));
+    }
+
+    @Test
+    public void testMatchesOnlyTheSameData() throws Exception {
+        FeatureMatrix features = matrix(50, NUM_COLUMNS, new Random(3), 0);
+        Instances header = new Instances(data(features), 0);
+        File file = folder.newFile();
+        IndexSnapshot.write(file, header, features, null);
+        IndexSnapshot snapshot = IndexSnapshot.read(file);
+
+        double[] changed = features.values().clone();
+        changed[changed.length - 1] += 1e-9;
+        assertFalse(snapshot.matches(header, new FeatureMatrix(50, NUM_COLUMNS, changed)));
+        Instances otherClass = new Instances(header, 0);
+        otherClass.setClassIndex(0);
+        assertFalse(snapshot.matches(otherClass, features));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedFile() throws Exception {
+        FeatureMatrix features = matrix(50, NUM_COLUMNS, new Random(4), 0);
+        File file = folder.newFile();
+        IndexSnapshot.write(file, new Instances(data(features), 0), features, null);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(out.length() - 8);
+        }
+        IndexSnapshot.read(file);
+    }
+
+    @Test
+    public void testBuildRewritesStaleAndUnreadableSnapshots() throws Exception {
+        Instances data = data(matrix(200, NUM_COLUMNS, new Random(5), 0));
+        File file = folder.newFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+        }
+        ImputeMetrics metrics = ImputeMetrics.get();
+        boolean enabled = metrics.isEnabled();
+        metrics.setEnabled(true);
+        long unreadable = metrics.count(ImputeMetrics.Counter.UnreadableSnapshots);
+        UniformLLR llr = new UniformLLR(10, UniformLLR.NNStrategy.Approximate, UniformLLR.LLRStrategy.Optimize1d);
+        llr.setIndexFile(file);
+        try {
+            llr.buildClassifier(data);
+        } finally {
+            metrics.setEnabled(enabled);
+        }
+        assertEquals(unreadable + 1, metrics.count(ImputeMetrics.Counter.UnreadableSnapshots));
+        assertEquals(10, IndexSnapshot.read(file).k());
+
+        llr = new UniformLLR(20, UniformLLR.NNStrategy.Approximate, UniformLLR.LLRStrategy.Optimize1d);
+        llr.setIndexFile(file);
+        llr.buildClassifier(data);
+        assertEquals(20, IndexSnapshot.read(file).k());
+    }
+}
@@ -0,0 +1,77 @@
+package com.fatty.ml;
+
+import com.fatty.BoundedMaxHeap;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.fatty.ml.TestData.caredColumns;
+import static com.fatty.ml.TestData.matrix;
+import static com.fatty.ml.TestData.range;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link KDTree} returns exactly the neighbours of the brute-force search, ties included.
+ */
+public class KDTreeTest {
+    protected static void assertExact(FeatureMatrix features, int leafSize, int levels, Random random) {
+        int numColumns = features.numColumns();
+        KDTree tree = new KDTree(features, range(numColumns), leafSize);
+        for (int q=0; q<50; ++q) {
+            double[] query = new double[numColumns];
+            for (int i=0; i<numColumns; ++i)
+                query[i] = levels > 0 ? random.nextInt(levels) : random.nextDouble();
+            int[] cared = q % 2 == 0 ? range(numColumns) : caredColumns(numColumns, random);
+            int k = 1 + random.nextInt(20);
+
+            BoundedMaxHeap expected = new BoundedMaxHeap(k);
+            for (int row=0; row<features.numRows(); ++row)
+                expected.offer(row, features.l1Distance(row, query, cared));
+            BoundedMaxHeap actual = new BoundedMaxHeap(k);
+            tree.search(query, cared, actual);
+
+            double[] expectedDistances = new double[expected.size()];
+            double[] actualDistances = new double[actual.size()];
+            assertArrayEquals(expected.drainSortedIndices(expectedDistances),
+                    actual.drainSortedIndices(actualDistances));
+            assertArrayEquals(expectedDistances, actualDistances, 0.0);
+        }
+    }
+
+    @Test
+    public void testContinuousValues() {
+        Random random = new Random(1);
+        FeatureMatrix features = matrix(2000, 6, random, 0);
+        for (int leafSize: new int[] {1, 8, 32})
+            assertExact(features, leafSize, 0, random);
+    }
+
+    @Test
+    public void testTies() {
+        // Few distinct values give many equal distances, which must be resolved as the brute force does.
+        Random random = new Random(2);
+        FeatureMatrix features = matrix(1500, 5, random, 3);
+        for (int leafSize: new int[] {1, 4, 32})
+            assertExact(features, leafSize, 3, random);
+    }
+
+    @Test
+    public void testFewerRowsThanK() {
+        Random random = new Random(3);
+        FeatureMatrix features = matrix(7, 3, random, 0);
+        KDTree tree = new KDTree(features, range(3), 2);
+        BoundedMaxHeap heap = new BoundedMaxHeap(20);
+        tree.search(new double[] {0.5, 0.5, 0.5}, range(3), heap);
+        assertEquals(7, heap.size());
+    }
+
+    @Test
+    public void testEmptyMatrix() {
+        KDTree tree = new KDTree(new FeatureMatrix(0, 3, new double[0]), range(3));
+        BoundedMaxHeap heap = new BoundedMaxHeap(5);
+        tree.search(new double[] {0.0, 0.0, 0.0}, range(3), heap);
+        assertEquals(0, tree.numNodes());
+        assertEquals(0, heap.size());
+    }
+}
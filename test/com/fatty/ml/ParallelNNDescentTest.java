@@ -0,0 +1,108 @@
+package com.fatty.ml;
+
+import com.fatty.BoundedMaxHeap;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static com.fatty.ml.TestData.matrix;
+import static com.fatty.ml.TestData.range;
+import static com.fatty.ml.TestData.recall;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the recall of the graphs of {@link ParallelNNDescent}, computed at once or grown by
+ * {@link ParallelNNDescent#add(FeatureMatrix, int)}, against the exact neighbours.
+ */
+public class ParallelNNDescentTest {
+    // The sampled joins of NN-Descent need k of a few tens to converge within the default iterations.
+    protected static final int K = 20;
+    protected static final int NUM_COLUMNS = 6;
+
+    /**
+     * Checks that every list holds k distinct other nodes at their true distances, and returns the mean recall.
+     */
+    protected static double meanRecall(FeatureMatrix features, ParallelNNDescent graph) {
+        int n = features.numRows();
+        int[] columns = range(NUM_COLUMNS);
+        assertEquals(n, graph.numNodes());
+        double sum = 0.0;
+        for (int v=0; v<n; ++v) {
+            int[] neighbors = graph.neighbors(v);
+            double[] distances = graph.distances(v);
+            assertEquals(K, neighbors.length);
+            Set<Integer> distinct = new HashSet<>();
+            for (int i=0; i<K; ++i) {
+                assertNotEquals(v, neighbors[i]);
+                assertTrue(neighbors[i] >= 0 && neighbors[i] < n);
+                assertTrue(distinct.add(neighbors[i]));
+                assertEquals(Math.sqrt(features.squaredL2Distance(v, neighbors[i], columns)), distances[i], 1e-12);
+            }
+
+            BoundedMaxHeap exact = new BoundedMaxHeap(K);
+            for (int u=0; u<n; ++u) {
+                if (u != v)
+                    exact.offer(u, features.squaredL2Distance(v, u, columns));
+            }
+            sum += recall(exact.drainSortedIndices(), neighbors);
+        }
+        return sum / n;
+    }
+
+    @Test
+    public void testComputeRecall() throws InterruptedException {
+        FeatureMatrix features = matrix(2000, NUM_COLUMNS, new Random(1), 0);
+        for (int numThreads: new int[] {1, 4}) {
+            ParallelNNDescent graph = new ParallelNNDescent(features, range(NUM_COLUMNS), K);
+            graph.compute(numThreads);
+            assertTrue(meanRecall(features, graph) >= 0.95);
+        }
+    }
+
+    @Test
+    public void testSerialComputeIsReproducible() throws InterruptedException {
+        FeatureMatrix features = matrix(500, NUM_COLUMNS, new Random(2), 0);
+        ParallelNNDescent a = new ParallelNNDescent(features, range(NUM_COLUMNS), K);
+        ParallelNNDescent b = new ParallelNNDescent(features, range(NUM_COLUMNS), K);
+        a.compute(1);
+        b.compute(1);
+        for (int v=0; v<features.numRows(); ++v) {
+            assertArrayEquals(a.neighbors(v), b.neighbors(v));
+            assertArrayEquals(a.distances(v), b.distances(v), 0.0);
+        }
+    }
+
+    @Test
+    public void testAddRecall() throws InterruptedException {
+        int n = 2000;
+        FeatureMatrix grown = matrix(n, NUM_COLUMNS, new Random(3), 0);
+        for (int numThreads: new int[] {1, 4}) {
+            for (int first: new int[] {n * 9 / 10, n / 2}) {
+                FeatureMatrix base = new FeatureMatrix(first, NUM_COLUMNS,
+                        Arrays.copyOf(grown.values(), first * NUM_COLUMNS));
+                ParallelNNDescent graph = new ParallelNNDescent(base, range(NUM_COLUMNS), K);
+                graph.compute(numThreads);
+                graph.add(grown, numThreads);
+                assertTrue(meanRecall(grown, graph) >= 0.9);
+            }
+        }
+    }
+
+    @Test
+    public void testAddFewRowsToSmallGraph() throws InterruptedException {
+        // The new rows still get k distinct neighbours at their true distances when there are barely k old rows.
+        FeatureMatrix grown = matrix(K + 4, NUM_COLUMNS, new Random(4), 0);
+        FeatureMatrix base = new FeatureMatrix(K + 1, NUM_COLUMNS,
+                Arrays.copyOf(grown.values(), (K + 1) * NUM_COLUMNS));
+        ParallelNNDescent graph = new ParallelNNDescent(base, range(NUM_COLUMNS), K);
+        graph.compute(1);
+        graph.add(grown, 1);
+        meanRecall(grown, graph);
+    }
+}
@@ -0,0 +1,57 @@
+package com.fatty.ml;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link UniformLLR#simplexLLRSolver} against the JOptimizer reference {@link UniformLLR#slowSolver} on random
+ * LLR problems, with fewer and with more dimensions than neighbours.
+ */
+public class SimplexLLRSolverTest {
+    protected static double objective(double[][] A, double[] b, double[] w) {
+        double sum = 0.0;
+        for (int i=0; i<A.length; ++i) {
+            double r = -b[i];
+            for (int j=0; j<w.length; ++j)
+                r += A[i][j] * w[j];
+            sum += r * r;
+        }
+        return sum;
+    }
+
+    @Test
+    public void testAgainstSlowSolver() {
+        Random random = new Random(1);
+        for (int p=0; p<30; ++p) {
+            int d = 2 + random.nextInt(20), k = 3 + random.nextInt(30);
+            double[][] A = new double[d][k];
+            double[] b = new double[d];
+            for (int i=0; i<d; ++i) {
+                for (int j=0; j<k; ++j)
+                    A[i][j] = random.nextDouble();
+                b[i] = 0.25 + 0.5 * random.nextDouble();
+            }
+            DenseMatrix dense = DenseMatrix.of(A);
+            double[][] G = dense.transposeMultiply(dense).toArray();
+            double[] Atb = dense.transposeMultiply(b);
+
+            double[] reference = UniformLLR.slowSolver(A, b);
+            UniformLLR.SolverWorkspace workspace = new UniformLLR.SolverWorkspace(d, k);
+            double[] w = UniformLLR.simplexLLRSolver(G, Atb, k, 1e-6, 1000, workspace, new double[k]);
+
+            double sum = 0.0;
+            for (int j=0; j<k; ++j) {
+                assertTrue(w[j] >= 0.0);
+                sum += w[j];
+            }
+            assertEquals(1.0, sum, 1e-12);
+            double expected = objective(A, b, reference), actual = objective(A, b, w);
+            assertTrue("d=" + d + " k=" + k + ": " + actual + " > " + expected,
+                    actual <= expected + 1e-6 * Math.max(1.0, expected));
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.fatty.ml;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The random data of the tests.
+ */
+public class TestData {
+    /**
+     * Returns a matrix of uniform values in [0, 1), or of integers in [0, levels) if levels is positive.
+     */
+    public static FeatureMatrix matrix(int numRows, int numColumns, Random random, int levels) {
+        double[] values = new double[numRows * numColumns];
+        for (int i=0; i<values.length; ++i)
+            values[i] = levels > 0 ? random.nextInt(levels) : random.nextDouble();
+        return new FeatureMatrix(numRows, numColumns, values);
+    }
+
+    public static int[] range(int n) {
+        int[] columns = new int[n];
+        for (int i=0; i<n; ++i)
+            columns[i] = i;
+        return columns;
+    }
+
+    /**
+     * Returns a random non-empty subset of the columns in ascending order.
+     */
+    public static int[] caredColumns(int numColumns, Random random) {
+        int[] columns = new int[numColumns];
+        int n = 0;
+        for (int i=0; i<numColumns; ++i) {
+            if (random.nextBoolean())
+                columns[n++] = i;
+        }
+        if (n == 0)
+            columns[n++] = random.nextInt(numColumns);
+        return Arrays.copyOf(columns, n);
+    }
+
+    /**
+     * Returns the fraction of the expected indices found in the actual ones.
+     */
+    public static double recall(int[] expected, int[] actual) {
+        int found = 0;
+        for (int e: expected) {
+            for (int a: actual) {
+                if (a == e) {
+                    ++found;
+                    break;
+                }
+            }
+        }
+        return expected.length == 0 ? 1.0 : (double) found / expected.length;
+    }
+}